@@ -0,0 +1,60 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded cost of one product with each kernel in MatrixFileIO.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class KernelBenchmark {
+    @Param({"64", "128", "256", "512"})
+    int size;
+
+    int[][] a;
+    int[][] b;
+    Object offHeapA;
+    Object offHeapB;
+
+    @Setup
+    public void setup() throws Throwable {
+        a = Project.randomData(size);
+        b = Project.randomData(size);
+        offHeapA = (Object) Project.OFF_HEAP_OF.invokeExact(a);
+        offHeapB = (Object) Project.OFF_HEAP_OF.invokeExact(b);
+    }
+
+    @Benchmark
+    public int[][] standardMultiply() throws Throwable {
+        return (int[][]) Project.STANDARD_MULTIPLY.invokeExact(a, b);
+    }
+
+    @Benchmark
+    public int[][] strassenMultiply() throws Throwable {
+        return (int[][]) Project.STRASSEN_MULTIPLY.invokeExact(a, b);
+    }
+
+    // Product released straight back to the arena, as the off-heap reduction does
+    @Benchmark
+    public Object offHeapStrassenMultiply() throws Throwable {
+        Object product = (Object) Project.OFF_HEAP_MULTIPLY.invokeExact(offHeapA, offHeapB);
+        Project.OFF_HEAP_RELEASE.invokeExact(product);
+        return product;
+    }
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+
+/**
+ * Handles onto the project classes. They live in the default package, which a named
+ * package cannot import (and JMH refuses to generate code for default-package
+ * benchmarks), so they are reached through method handles resolved once at class load.
+ */
+final class Project {
+    static final Class<?> MATRIX = load("matrix");
+
+    // (int[][], int[][]) -> int[][]
+    static final MethodHandle STANDARD_MULTIPLY = kernel("standardMultiply");
+    static final MethodHandle STRASSEN_MULTIPLY = kernel("strassenMultiply");
+
+    // (Object matrix[]) -> int[][]
+    static final MethodHandle RESULT_MATRIX = fileIO("resultMatrix",
+            MethodType.methodType(int[][].class, MATRIX.arrayType()))
+            .asType(MethodType.methodType(int[][].class, Object.class));
+    static final MethodHandle RESULT_MATRIX_SINGLE_THREAD = fileIO("resultMatrixSingleThread",
+            MethodType.methodType(int[][].class, MATRIX.arrayType()))
+            .asType(MethodType.methodType(int[][].class, Object.class));
+
+    // OffHeapMatrix handles, typed as Object: of(int[][]), OffHeapKernels.multiply(a, b), release()
+    static final MethodHandle OFF_HEAP_OF;
+    static final MethodHandle OFF_HEAP_MULTIPLY;
+    static final MethodHandle OFF_HEAP_RELEASE;
+
+    private static final MethodHandle NEW_MATRIX;
+    private static final MethodHandle GENERATE = handle("MatrixGenerator", "generateMatrix",
+            MethodType.methodType(int[][].class, int.class, int.class, int.class));
+    private static final MethodHandle INIT_POOL = fileIO("initializeFixedThreadPool",
+            MethodType.methodType(void.class, int.class));
+    private static final MethodHandle SHUTDOWN = fileIO("shutdown",
+            MethodType.methodType(void.class));
+    private static final MethodHandle SET_CACHE = fileIO("setCacheEnabled",
+            MethodType.methodType(void.class, boolean.class));
+
+    static {
+        try {
+            NEW_MATRIX = MethodHandles.lookup()
+                    .findConstructor(MATRIX, MethodType.methodType(void.class, int[][].class))
+                    .asType(MethodType.methodType(Object.class, int[][].class));
+            Class<?> offHeap = load("OffHeapMatrix");
+            OFF_HEAP_OF = handle("OffHeapMatrix", "of", MethodType.methodType(offHeap, int[][].class))
+                    .asType(MethodType.methodType(Object.class, int[][].class));
+            OFF_HEAP_MULTIPLY = handle("OffHeapKernels", "multiply", MethodType.methodType(offHeap, offHeap, offHeap))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+            OFF_HEAP_RELEASE = MethodHandles.lookup()
+                    .findVirtual(offHeap, "release", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Project() {
+    }
+
+    static int[][] randomData(int size) throws Throwable {
+        return (int[][]) GENERATE.invokeExact(size, 1, 10);
+    }
+
+    // A matrix[] of random matrices, typed as Object
+    static Object randomChain(int size, int count) throws Throwable {
+        Object chain = Array.newInstance(MATRIX, count);
+        for (int i = 0; i < count; i++) {
+            Array.set(chain, i, (Object) NEW_MATRIX.invokeExact(randomData(size)));
+        }
+        return chain;
+    }
+
+    static void initializeThreadPool(int threads) throws Throwable {
+        INIT_POOL.invokeExact(threads);
+    }
+
+    static void shutdown() throws Throwable {
+        SHUTDOWN.invokeExact();
+    }
+
+    static void setCacheEnabled(boolean enabled) throws Throwable {
+        SET_CACHE.invokeExact(enabled);
+    }
+
+    private static MethodHandle kernel(String name) {
+        return fileIO(name, MethodType.methodType(int[][].class, int[][].class, int[][].class));
+    }
+
+    private static MethodHandle fileIO(String name, MethodType type) {
+        return handle("MatrixFileIO", name, type);
+    }
+
+    private static MethodHandle handle(String className, String name, MethodType type) {
+        try {
+            Class<?> owner = load(className);
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup()).findStatic(owner, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-chain reduction through MatrixFileIO.resultMatrix. The pool is created once per
+ * trial so its start-up cost stays out of the measurement, and the product cache is off
+ * because every invocation reuses the same inputs.
+ *
+ * Counts start at 4: resultMatrix shuts the pool down after a two-matrix chain.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ReductionBenchmark {
+    @Param({"64", "256"})
+    int size;
+
+    @Param({"4", "8", "16", "32"})
+    int count;
+
+    @Param({"1", "4", "8"})
+    int threads;
+
+    Object chain;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Project.setCacheEnabled(false);
+        chain = Project.randomChain(size, count);
+        Project.initializeThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        Project.shutdown();
+    }
+
+    @Benchmark
+    public int[][] parallelTree() throws Throwable {
+        return (int[][]) Project.RESULT_MATRIX.invokeExact(chain);
+    }
+
+    @Benchmark
+    public int[][] sequentialTree() throws Throwable {
+        return (int[][]) Project.RESULT_MATRIX_SINGLE_THREAD.invokeExact(chain);
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admits requests against a memory and compute budget using only their headers, before
+ * any payload is read.
+ *
+ * A request that fits the free budget is admitted and its estimate reserved until the
+ * job finishes. One that does not fit yet waits in a bounded FIFO queue and is admitted
+ * as earlier jobs release their reservations. One that needs more memory than the whole
+ * budget, or arrives when the queue is full, is rejected.
+ *
+ * The compute budget only limits how much work runs at once: a request over it on its
+ * own waits until the server is idle and then runs alone.
+ */
+public class AdmissionController {
+    public static final class Ticket {
+        final long sessionId;
+        final long clientId;  // Who the scheduler counts the work against
+        final long requestId;
+        final Protocol.RequestHeader header;
+        final long bytes;
+        final double flops;
+        private volatile boolean admitted;
+        private boolean released;  // Guarded by the controller
+        private final AtomicBoolean started = new AtomicBoolean();  // Payload accepted; the job owns the reservation now
+        CancellationToken token = CancellationToken.NONE;  // Set by the server for the request's lifetime
+
+        Ticket(long sessionId, Protocol.RequestHeader header) {
+            this.sessionId = sessionId;
+            // A client's own id is kept apart from session ids (which are never negative), so
+            // it cannot collide with another connection's session
+            this.clientId = header.clientId != 0 ? header.clientId | Long.MIN_VALUE : sessionId;
+            this.requestId = header.requestId;
+            this.header = header;
+            this.bytes = header.estimatedBytes();
+            this.flops = header.estimatedFlops();
+        }
+
+        boolean isAdmitted() {
+            return admitted;
+        }
+
+        // True for the one payload that gets to run this request; a duplicate gets false
+        boolean claim() {
+            return started.compareAndSet(false, true);
+        }
+    }
+
+    private static final Metrics.Counter ADMITTED = Metrics.counter("server_admission_admitted_total");
+    private static final Metrics.Counter QUEUED = Metrics.counter("server_admission_queued_total");
+    private static final Metrics.Counter REJECTED = Metrics.counter("server_admission_rejected_total");
+    private static final LatencyHistogram QUEUE_TIME = Metrics.histogram("server_admission_wait_nanos");
+
+    private final long memoryBudget;
+    private final double computeBudget;
+    private final int maxQueued;
+
+    private long reservedBytes;
+    private double reservedFlops;
+    private int reserved;  // Tickets holding a reservation
+    private final Deque<Ticket> waiting = new ArrayDeque<>();
+    private final Map<Ticket, Long> queuedAt = new HashMap<>();
+
+    public AdmissionController(long memoryBudget, double computeBudget, int maxQueued) {
+        this.memoryBudget = memoryBudget;
+        this.computeBudget = computeBudget;
+        this.maxQueued = maxQueued;
+        Metrics.gauge("server_admission_reserved_bytes", this::getReservedBytes);
+        Metrics.gauge("server_admission_waiting", this::getQueuedCount);
+        Metrics.gauge("server_admission_memory_budget_bytes", () -> memoryBudget);
+    }
+
+    // Budgets from -Dserver.memoryBudgetMb, -Dserver.computeBudgetGflop and -Dserver.maxQueued
+    public static AdmissionController fromSystemProperties() {
+        long defaultMb = Runtime.getRuntime().maxMemory() / (1024 * 1024) * 6 / 10;
+        long memoryMb = Long.getLong("server.memoryBudgetMb", defaultMb);
+        double computeGflop = Double.parseDouble(System.getProperty("server.computeBudgetGflop", "200"));
+        int maxQueued = Integer.getInteger("server.maxQueued", 32);
+        return new AdmissionController(memoryMb * 1024 * 1024, computeGflop * 1e9, maxQueued);
+    }
+
+    public synchronized Protocol.Admission offer(Ticket ticket) {
+        if (ticket.bytes > memoryBudget) {
+            REJECTED.increment();
+            return new Protocol.Admission(ticket.requestId, Protocol.Decision.REJECTED, String.format(
+                    "needs ~%d MB, more than the server's %d MB budget",
+                    ticket.bytes >> 20, memoryBudget >> 20));
+        }
+        if (waiting.isEmpty() && fits(ticket)) {
+            reserve(ticket);
+            return new Protocol.Admission(ticket.requestId, Protocol.Decision.ADMITTED, null);
+        }
+        if (waiting.size() >= maxQueued) {
+            REJECTED.increment();
+            return new Protocol.Admission(ticket.requestId, Protocol.Decision.REJECTED,
+                    "server busy: " + waiting.size() + " requests already queued, retry later");
+        }
+        waiting.addLast(ticket);
+        queuedAt.put(ticket, System.nanoTime());
+        QUEUED.increment();
+        return new Protocol.Admission(ticket.requestId, Protocol.Decision.QUEUED,
+                "waiting for " + (reservedBytes >> 20) + " MB of running jobs to finish");
+    }
+
+    /**
+     * Returns a finished (or abandoned) ticket's reservation and admits queued tickets,
+     * in arrival order, that now fit. The caller must tell their clients. Releasing a
+     * ticket again, or one never admitted, does nothing.
+     */
+    public synchronized List<Ticket> release(Ticket ticket) {
+        if (!ticket.admitted || ticket.released) {
+            return new ArrayList<>();
+        }
+        ticket.released = true;
+        reservedBytes -= ticket.bytes;
+        reservedFlops -= ticket.flops;
+        reserved--;
+        return drain();
+    }
+
+    // Drops every queued ticket of a closed session
+    public synchronized List<Ticket> removeSession(long sessionId) {
+        waiting.removeIf(t -> {
+            if (t.sessionId != sessionId) return false;
+            queuedAt.remove(t);
+            return true;
+        });
+        return drain();
+    }
+
+    private List<Ticket> drain() {
+        List<Ticket> admitted = new ArrayList<>();
+        while (!waiting.isEmpty() && fits(waiting.peekFirst())) {
+            Ticket next = waiting.removeFirst();
+            QUEUE_TIME.record(System.nanoTime() - queuedAt.remove(next));
+            reserve(next);
+            admitted.add(next);
+        }
+        return admitted;
+    }
+
+    private boolean fits(Ticket ticket) {
+        // An idle server always takes one job, however much work it is
+        return reserved == 0
+                || (reservedBytes + ticket.bytes <= memoryBudget && reservedFlops + ticket.flops <= computeBudget);
+    }
+
+    private void reserve(Ticket ticket) {
+        ticket.admitted = true;
+        reservedBytes += ticket.bytes;
+        reservedFlops += ticket.flops;
+        reserved++;
+        ADMITTED.increment();
+    }
+
+    // The router should send new clients elsewhere while requests are waiting here
+    public synchronized boolean isSaturated() {
+        return !waiting.isEmpty();
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public synchronized int getQueuedCount() {
+        return waiting.size();
+    }
+}
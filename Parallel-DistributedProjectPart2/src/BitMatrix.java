@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntConsumer;
+
+/**
+ * A 0/1 matrix packed 64 entries to a long, multiplied over the boolean semiring:
+ * (AB)[i][j] = OR over k of (A[i][k] AND B[k][j]). Chains of adjacency matrices
+ * multiply out to reachability in exactly as many steps. A row takes cols / 8 bytes
+ * instead of 4 * cols, in memory and on the wire.
+ *
+ * Products OR whole rows of B together, 64 entries per operation. From
+ * FOUR_RUSSIANS_MIN_SIZE up, each group of 8 rows of B is first combined into a table of
+ * all 256 ORs, so every byte of a row of A costs one table lookup instead of up to
+ * eight row ORs (the "Four Russians" method).
+ */
+public final class BitMatrix implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+    // Inner dimension from which multiply builds Four Russians tables
+    static final int FOUR_RUSSIANS_MIN_SIZE = Integer.getInteger("matrix.bits.fourRussiansMin", 256);
+    private static final int GROUP = 8;
+    // Groups whose tables are built at once, bounding them to 64 * 256 rows of the result
+    private static final int TABLE_GROUPS = 64;
+    private static final long PARALLEL_WORDS = 1 << 16;
+    // Pieces a large product's rows (or tables) are split into when forked
+    private static final int FORKED_PIECES = 8;
+
+    private final int rows;
+    private final int cols;
+    private final long[][] bits;  // bits[i][j >>> 6] holds entry (i, j) at bit j & 63
+
+    public BitMatrix(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.bits = new long[rows][words(cols)];
+    }
+
+    // Nonzero entries become 1
+    public static BitMatrix of(matrix m) {
+        int[][] data = m.getMatrixData();
+        BitMatrix b = new BitMatrix(data.length, data[0].length);
+        for (int i = 0; i < data.length; i++) {
+            for (int j = 0; j < data[i].length; j++) {
+                if (data[i][j] != 0) {
+                    b.set(i, j, true);
+                }
+            }
+        }
+        return b;
+    }
+
+    public matrix toMatrix() {
+        int[][] data = new int[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                data[i][j] = get(i, j) ? 1 : 0;
+            }
+        }
+        return matrix.adopt(data);
+    }
+
+    // Whether the packed rows agree with rows and cols, which a deserialized matrix need not
+    boolean isWellFormed() {
+        if (rows <= 0 || cols <= 0 || bits == null || bits.length != rows) {
+            return false;
+        }
+        for (long[] row : bits) {
+            if (row == null || row.length != words(cols)) return false;
+        }
+        return true;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public boolean get(int i, int j) {
+        return (bits[i][j >>> 6] & (1L << j)) != 0;
+    }
+
+    public void set(int i, int j, boolean value) {
+        if (value) {
+            bits[i][j >>> 6] |= 1L << j;
+        } else {
+            bits[i][j >>> 6] &= ~(1L << j);
+        }
+    }
+
+    /**
+     * Boolean product this * other, with rows split across the common pool when the
+     * product is large.
+     */
+    public BitMatrix multiply(BitMatrix other) {
+        return multiply(other, CancellationToken.NONE);
+    }
+
+    public BitMatrix multiply(BitMatrix other, CancellationToken token) {
+        return multiply(other, token, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Like {@link #multiply(BitMatrix, CancellationToken)}, with the pieces of a large
+     * product forked through tasks (a FairScheduler job, say) instead of the common pool.
+     */
+    public BitMatrix multiply(BitMatrix other, CancellationToken token, Executor tasks) {
+        if (cols != other.rows) {
+            throw new IllegalArgumentException("Matrix dimensions don't match for multiplication: "
+                    + rows + "x" + cols + " * " + other.rows + "x" + other.cols);
+        }
+        BitMatrix c = new BitMatrix(rows, other.cols);
+        boolean parallel = (long) rows * cols * words(other.cols) / 64 >= PARALLEL_WORDS;
+        Executor forks = parallel ? tasks : null;
+        if (cols < FOUR_RUSSIANS_MIN_SIZE) {
+            forEach(0, rows, forks, i -> {
+                if ((i & 63) == 0) {
+                    token.throwIfCancelled();
+                }
+                multiplyRow(bits[i], other.bits, c.bits[i]);
+            });
+            return c;
+        }
+        int groups = (cols + GROUP - 1) / GROUP;
+        for (int first = 0; first < groups; first += TABLE_GROUPS) {
+            token.throwIfCancelled();
+            long[][] tables = other.fourRussiansTables(first, Math.min(groups, first + TABLE_GROUPS), forks);
+            int offset = first;
+            forEach(0, rows, forks, i -> multiplyRowByTables(bits[i], tables, offset, c.bits[i]));
+        }
+        return c;
+    }
+
+    // Runs body for each index in [from, end), in pieces forked through tasks unless it is
+    // null. A piece still queued when this thread gets to it runs here, so this never waits
+    // for work queued behind other jobs.
+    private static void forEach(int from, int end, Executor tasks, IntConsumer body) {
+        int pieces = tasks == null ? 1 : Math.min(FORKED_PIECES, end - from);
+        List<FutureTask<Void>> forked = new ArrayList<>();
+        for (int p = 1; p < pieces; p++) {
+            int start = from + (int) ((long) (end - from) * p / pieces);
+            int stop = from + (int) ((long) (end - from) * (p + 1) / pieces);
+            FutureTask<Void> task = new FutureTask<>(() -> range(start, stop, body), null);
+            forked.add(task);
+            tasks.execute(task);
+        }
+        range(from, pieces <= 1 ? end : from + (end - from) / pieces, body);
+        for (FutureTask<Void> task : forked) {
+            task.run();  // Does nothing if it already ran or is running elsewhere
+            join(task);
+        }
+    }
+
+    private static void range(int from, int end, IntConsumer body) {
+        for (int i = from; i < end; i++) {
+            body.accept(i);
+        }
+    }
+
+    // Waits for a forked piece, with its own exception rethrown unwrapped
+    private static void join(FutureTask<Void> task) {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted");
+        }
+    }
+
+    // OR of the rows of b selected by the set bits of a
+    private static void multiplyRow(long[] a, long[][] b, long[] out) {
+        for (int w = 0; w < a.length; w++) {
+            long word = a[w];
+            while (word != 0) {
+                long[] row = b[(w << 6) + Long.numberOfTrailingZeros(word)];
+                for (int j = 0; j < out.length; j++) {
+                    out[j] |= row[j];
+                }
+                word &= word - 1;
+            }
+        }
+    }
+
+    // One byte of a at a time: its 8 bits select a precomputed OR of 8 rows of b.
+    // tables[t] belongs to group first + t, i.e. bits 8 (first + t) onwards of a.
+    private static void multiplyRowByTables(long[] a, long[][] tables, int first, long[] out) {
+        int words = out.length;
+        for (int t = 0; t < tables.length; t++) {
+            int g = first + t;
+            int mask = (int) (a[g >>> 3] >>> ((g & 7) * GROUP)) & 0xFF;
+            if (mask == 0) continue;
+            long[] table = tables[t];
+            int base = mask * words;
+            for (int j = 0; j < words; j++) {
+                out[j] |= table[base + j];
+            }
+        }
+    }
+
+    // For groups first..end-1 of 8 rows, the ORs of all 256 subsets, each from a smaller one
+    private long[][] fourRussiansTables(int first, int end, Executor tasks) {
+        int words = words(cols);
+        long[][] tables = new long[end - first][];
+        forEach(first, end, tasks, g -> {
+            long[] table = new long[256 * words];
+            for (int mask = 1; mask < 256; mask++) {
+                int low = Integer.numberOfTrailingZeros(mask);
+                int row = g * GROUP + low;
+                int rest = mask & (mask - 1);
+                for (int j = 0; j < words; j++) {
+                    table[mask * words + j] = table[rest * words + j] | (row < rows ? bits[row][j] : 0);
+                }
+            }
+            tables[g - first] = table;
+        });
+        return tables;
+    }
+
+    /**
+     * Heap the Four Russians tables of one product take while it runs: those of up to
+     * TABLE_GROUPS groups of the inner dimension, each 256 rows as wide as the result. Zero
+     * below FOUR_RUSSIANS_MIN_SIZE, where no tables are built.
+     */
+    static long tableBytes(int inner, int cols) {
+        if (inner < FOUR_RUSSIANS_MIN_SIZE) {
+            return 0;
+        }
+        long groups = Math.min((inner + GROUP - 1) / GROUP, TABLE_GROUPS);
+        return groups * 256 * words(cols) * 8L;
+    }
+
+    private static int words(int bitsPerRow) {
+        return (bitsPerRow + 63) >>> 6;
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation for one request: cancelled explicitly (e.g. the client went
+ * away) or implicitly once its deadline passes. Work checks the token at task and
+ * recursion boundaries and stops by throwing CancellationException.
+ */
+public final class CancellationToken {
+    public static final CancellationToken NONE = new CancellationToken(Long.MAX_VALUE, false);
+
+    private final long deadline;      // System.nanoTime() value
+    private final boolean hasDeadline;
+    private volatile String reason;
+
+    private CancellationToken(long deadline, boolean hasDeadline) {
+        this.deadline = deadline;
+        this.hasDeadline = hasDeadline;
+    }
+
+    public static CancellationToken create() {
+        return new CancellationToken(Long.MAX_VALUE, false);
+    }
+
+    // A timeout of zero or less means no deadline
+    public static CancellationToken withTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0) return create();
+        return new CancellationToken(System.nanoTime() + timeoutMillis * 1_000_000L, true);
+    }
+
+    public void cancel(String why) {
+        if (this == NONE) {
+            throw new UnsupportedOperationException("NONE cannot be cancelled");
+        }
+        if (reason == null) {
+            reason = why;
+        }
+    }
+
+    public boolean isCancelled() {
+        if (reason != null) return true;
+        if (hasDeadline && System.nanoTime() - deadline >= 0) {
+            reason = "deadline exceeded";
+            return true;
+        }
+        return false;
+    }
+
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException(reason);
+        }
+    }
+
+    public String getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A chain whose product is kept up to date while single matrices in it change. The
+ * partial products of the reduction tree are kept as a segment tree: each inner node
+ * holds the product of its two children and the leaves hold the chain. Replacing one
+ * matrix recomputes only the log2 k products on its path to the root, and the product
+ * of any subrange is put together from at most 2 log2 k stored partials.
+ *
+ * Matrices must be square and of one size. Not thread-safe; the server runs the operations
+ * of a client session one at a time, each with its products handed to a FairScheduler job.
+ * Returned arrays are shared with the tree and must not be modified.
+ */
+public class ChainSession {
+    private final int length;
+    private final int size;
+    private final int leaves;      // length rounded up to a power of two
+    private final int[][][] tree;  // tree[1] is the root, tree[leaves + i] matrix i; null stands for the identity
+
+    public ChainSession(matrix[] chain, CancellationToken token) throws ExecutionException, InterruptedException {
+        this(chain, token, MatrixFileIO.getExecutor());
+    }
+
+    // Builds the tree with its products handed to tasks
+    public ChainSession(matrix[] chain, CancellationToken token, Executor tasks)
+            throws ExecutionException, InterruptedException {
+        if (chain.length == 0) {
+            throw new IllegalArgumentException("Empty chain");
+        }
+        length = chain.length;
+        size = chain[0].getRows();
+        int l = 1;
+        while (l < length) {
+            l <<= 1;
+        }
+        leaves = l;
+        tree = new int[2 * leaves][][];
+        for (int i = 0; i < length; i++) {
+            checkSize(chain[i], i);
+            tree[leaves + i] = chain[i].getMatrixData();
+        }
+
+        // Level by level: the products of one level are independent and share the pool
+        for (int first = leaves / 2; first >= 1; first /= 2) {
+            int parallelism = Math.max(1, MatrixFileIO.getCurrentThreadCount() / first);
+            List<CompletableFuture<int[][]>> level = new ArrayList<>(first);
+            for (int node = first; node < 2 * first; node++) {
+                level.add(combineAsync(tree[2 * node], tree[2 * node + 1], token, parallelism, tasks));
+            }
+            for (int node = first; node < 2 * first; node++) {
+                tree[node] = MatrixFileIO.await(level.get(node - first));
+            }
+        }
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int[][] product() {
+        return tree[1];
+    }
+
+    /**
+     * Replaces matrix index and recomputes the products above it. The tree is only changed
+     * once the whole path is done, so a cancelled update leaves the previous chain intact.
+     *
+     * @return the new product of the whole chain
+     */
+    public int[][] update(int index, matrix m, CancellationToken token) throws ExecutionException, InterruptedException {
+        return update(index, m, token, MatrixFileIO.getExecutor());
+    }
+
+    public int[][] update(int index, matrix m, CancellationToken token, Executor tasks)
+            throws ExecutionException, InterruptedException {
+        if (index < 0 || index >= length) {
+            throw new IllegalArgumentException("Index " + index + " outside chain of " + length);
+        }
+        checkSize(m, index);
+        int[][][] path = new int[2 * leaves][][];
+        int node = leaves + index;
+        path[node] = m.getMatrixData();
+        for (int parent = node / 2; parent >= 1; node = parent, parent /= 2) {
+            int[][] left = node % 2 == 0 ? path[node] : tree[parent * 2];
+            int[][] right = node % 2 == 0 ? tree[parent * 2 + 1] : path[node];
+            path[parent] = combine(left, right, token, tasks);
+        }
+        for (node = leaves + index; node >= 1; node /= 2) {
+            tree[node] = path[node];
+        }
+        return tree[1];
+    }
+
+    /**
+     * Product of matrices from through to (inclusive), from the stored partials that
+     * exactly cover the range.
+     */
+    public int[][] query(int from, int to, CancellationToken token) throws ExecutionException, InterruptedException {
+        return query(from, to, token, MatrixFileIO.getExecutor());
+    }
+
+    public int[][] query(int from, int to, CancellationToken token, Executor tasks)
+            throws ExecutionException, InterruptedException {
+        if (from < 0 || to >= length || from > to) {
+            throw new IllegalArgumentException("Range [" + from + ".." + to + "] outside chain of " + length);
+        }
+        int[][] left = null;
+        int[][] right = null;
+        for (int l = from + leaves, r = to + leaves + 1; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) != 0) {
+                left = combine(left, tree[l++], token, tasks);
+            }
+            if ((r & 1) != 0) {
+                right = combine(tree[--r], right, token, tasks);
+            }
+        }
+        return combine(left, right, token, tasks);
+    }
+
+    private void checkSize(matrix m, int index) {
+        if (!m.isRectangular() || m.getRows() != size || m.getCols() != size) {
+            throw new IllegalArgumentException("Chain sessions need square matrices of one size; matrix " + index
+                    + " is " + m.getRows() + "x" + m.getCols() + ", expected " + size + "x" + size);
+        }
+    }
+
+    private static int[][] combine(int[][] a, int[][] b, CancellationToken token, Executor tasks)
+            throws ExecutionException, InterruptedException {
+        if (a == null) return b;
+        if (b == null) return a;
+        return MatrixFileIO.multiply(a, b, token, tasks);
+    }
+
+    private static CompletableFuture<int[][]> combineAsync(int[][] a, int[][] b, CancellationToken token,
+                                                           int parallelism, Executor tasks) {
+        if (a == null) return CompletableFuture.completedFuture(b);
+        if (b == null) return CompletableFuture.completedFuture(a);
+        return MatrixFileIO.multiplyAsync(a, b, token, parallelism, tasks);
+    }
+}
@@ -0,0 +1,194 @@
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides which job's node task runs next when several reductions share one pool. Each
+ * reduction submits its node tasks through a Job instead of straight to the pool; at
+ * most {@code slots} tasks are handed to the pool at a time and the rest wait here, so
+ * the order in which they start is chosen here rather than by the pool's FIFO queue.
+ *
+ * Small jobs' tasks always go first. Among tasks of one class the client that has used
+ * the least pool time goes next (each client's compute time is summed as its virtual
+ * runtime, as in CFS; a client that goes idle and comes back starts at the current
+ * minimum, so it cannot bank credit). A client never has more than {@code quota} tasks
+ * running. Since every tree node is its own task, a small job arriving behind a large
+ * one takes over the next free thread: the large job is preempted at a node boundary.
+ *
+ * A client is whatever id its jobs are opened with. The server uses the id a request
+ * carries, which MatrixClient shares between all its connections; requests without one
+ * are counted per connection, so such a client gets a quota and a share per connection.
+ */
+public class FairScheduler {
+    private static final int SMALL = 0;
+    private static final int LARGE = 1;
+
+    private final Executor pool;
+    private final int slots;
+    private final int quota;
+    private final Map<Long, Client> clients = new HashMap<>();
+    private int running;
+    private long minVirtualRuntime;
+
+    private static final class Client {
+        final long id;
+        final List<Deque<Runnable>> queues = List.of(new ArrayDeque<>(), new ArrayDeque<>());
+        long virtualRuntime;
+        int running;
+        int openJobs;
+
+        Client(long id, long virtualRuntime) {
+            this.id = id;
+            this.virtualRuntime = virtualRuntime;
+        }
+
+        boolean isIdle() {
+            return running == 0 && openJobs == 0 && queues.get(SMALL).isEmpty() && queues.get(LARGE).isEmpty();
+        }
+    }
+
+    /**
+     * One reduction's view of the scheduler. Close it once the reduction is over; tasks
+     * already submitted still run.
+     */
+    public final class Job implements Executor, AutoCloseable {
+        private final long clientId;
+        private final int priority;
+        private boolean closed;
+
+        private Job(long clientId, int priority) {
+            this.clientId = clientId;
+            this.priority = priority;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            submit(clientId, priority, task);
+        }
+
+        @Override
+        public void close() {
+            synchronized (FairScheduler.this) {
+                if (closed) return;
+                closed = true;
+                // Still known: an open job keeps its client from being forgotten
+                Client client = clients.get(clientId);
+                client.openJobs--;
+                forgetIfIdle(client);
+            }
+        }
+    }
+
+    /**
+     * @param pool  where tasks finally run
+     * @param slots tasks handed to the pool at once, normally its thread count
+     * @param quota most tasks one client may have running; 0 for no limit beyond slots
+     */
+    public FairScheduler(Executor pool, int slots, int quota) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("Need at least one slot: " + slots);
+        }
+        this.pool = pool;
+        this.slots = slots;
+        this.quota = quota > 0 ? Math.min(quota, slots) : slots;
+    }
+
+    public synchronized Job open(long clientId, boolean small) {
+        client(clientId).openJobs++;
+        return new Job(clientId, small ? SMALL : LARGE);
+    }
+
+    // A task may arrive after its job closed (a cancelled reduction's last nodes, say), when
+    // the client may have been forgotten; it then comes back as a new one
+    private synchronized void submit(long clientId, int priority, Runnable task) {
+        client(clientId).queues.get(priority).add(task);
+        dispatch();
+    }
+
+    private Client client(long clientId) {
+        return clients.computeIfAbsent(clientId, id -> new Client(id, minVirtualRuntime));
+    }
+
+    // Hands queued tasks to the pool while slots are free
+    private void dispatch() {
+        while (running < slots) {
+            Client next = pick();
+            if (next == null) {
+                return;
+            }
+            Deque<Runnable> queue = next.queues.get(SMALL).isEmpty() ? next.queues.get(LARGE) : next.queues.get(SMALL);
+            Runnable task = queue.poll();
+            running++;
+            next.running++;
+            try {
+                pool.execute(() -> run(next, task));
+            } catch (RuntimeException e) {
+                // The pool is shutting down; drop the task as it would have
+                running--;
+                next.running--;
+                throw e;
+            }
+        }
+    }
+
+    // Small work first, then the client with the least pool time that is under its quota
+    private Client pick() {
+        for (int priority = SMALL; priority <= LARGE; priority++) {
+            Client best = null;
+            for (Client client : clients.values()) {
+                if (client.running < quota && !client.queues.get(priority).isEmpty()
+                        && (best == null || client.virtualRuntime < best.virtualRuntime)) {
+                    best = client;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    private void run(Client client, Runnable task) {
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            long spent = System.nanoTime() - start;
+            synchronized (this) {
+                running--;
+                client.running--;
+                client.virtualRuntime += spent;
+                updateMinimum();
+                forgetIfIdle(client);
+                dispatch();
+            }
+        }
+    }
+
+    private void updateMinimum() {
+        long min = Long.MAX_VALUE;
+        for (Client client : clients.values()) {
+            min = Math.min(min, client.virtualRuntime);
+        }
+        if (min != Long.MAX_VALUE) {
+            minVirtualRuntime = Math.max(minVirtualRuntime, min);
+        }
+    }
+
+    private void forgetIfIdle(Client client) {
+        if (client.isIdle()) {
+            clients.remove(client.id);
+        }
+    }
+
+    public synchronized int getQueuedTaskCount() {
+        int queued = 0;
+        for (Client client : clients.values()) {
+            queued += client.queues.get(SMALL).size() + client.queues.get(LARGE).size();
+        }
+        return queued;
+    }
+
+    public synchronized int getActiveClientCount() {
+        return clients.size();
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Checks a claimed chain product with Freivalds' algorithm instead of recomputing it:
+ * for a random vector r, A1(A2(...(Ak r))) must equal P r. Each round costs k + 1
+ * matrix-vector products, O(k n^2) in total, against O(k n^3) for recomputation.
+ *
+ * Products wrap in int arithmetic, so the check works modulo 2^32. A wrong product
+ * passes one round with probability at most 1/2, so the chance of accepting it after
+ * r independent rounds is at most 2^-r (usually far less, since r has full int entries).
+ */
+public final class FreivaldsVerifier {
+    // Rounds used when the caller does not choose: a false accept chance of 2^-20 or less
+    public static final int DEFAULT_ROUNDS = Integer.getInteger("verify.rounds", 20);
+
+    private FreivaldsVerifier() {
+    }
+
+    public static boolean verify(matrix[] chain, matrix product) {
+        return verify(chain, product, DEFAULT_ROUNDS, System.nanoTime());
+    }
+
+    /**
+     * @param rounds independent random vectors to try
+     * @param seed   seed for the vectors, so a failing check can be replayed
+     * @return false if the product is certainly wrong, true if it passed every round
+     */
+    public static boolean verify(matrix[] chain, matrix product, int rounds, long seed) {
+        return verify(chain, product, rounds, seed, true);
+    }
+
+    // Like verify(chain, product, rounds, seed); without splitRows every matrix-vector
+    // product stays on the calling thread instead of splitting its rows over the common pool
+    static boolean verify(matrix[] chain, matrix product, int rounds, long seed, boolean splitRows) {
+        if (chain.length == 0) {
+            throw new IllegalArgumentException("Empty chain");
+        }
+        for (int i = 0; i + 1 < chain.length; i++) {
+            if (chain[i].getCols() != chain[i + 1].getRows()) {
+                throw new IllegalArgumentException("Matrix dimensions don't match for multiplication at " + i);
+            }
+        }
+        if (product.getRows() != chain[0].getRows() || product.getCols() != chain[chain.length - 1].getCols()) {
+            return false;
+        }
+
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] r = new int[product.getCols()];
+        for (int round = 0; round < rounds; round++) {
+            for (int j = 0; j < r.length; j++) {
+                r[j] = random.nextInt();
+            }
+            int[] expected = MatrixFileIO.chainTimes(chain, r, CancellationToken.NONE, splitRows);
+            if (!Arrays.equals(expected, product.multiply(r, splitRows))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A1(A2(...(Ak v))), right to left so only vectors are ever produced
+    public static int[] chainTimes(matrix[] chain, int[] v) {
+        return MatrixFileIO.chainTimes(chain, v, CancellationToken.NONE);
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of non-negative long values (usually nanoseconds),
+ * in the style of HdrHistogram: every power of two is split into 64 linear sub-buckets,
+ * so recorded values keep about 1.6% relative precision over the whole long range.
+ *
+ * Recording is lock-free and safe from any number of threads.
+ */
+public class LatencyHistogram {
+    private static final int PRECISION_BITS = 7;                  // mantissa bits including the leading 1
+    private static final int LINEAR_LIMIT = 1 << PRECISION_BITS;  // values below this are exact
+    private static final int SUB_BUCKETS = LINEAR_LIMIT / 2;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (64 - PRECISION_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = totalCount.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Returns the value at the given percentile (0-100), accurate to the bucket width.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = totalCount.get();
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (PRECISION_BITS - 1);
+        int mantissa = (int) (value >>> shift);  // in [SUB_BUCKETS, LINEAR_LIMIT)
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long mantissa = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        long highest = ((mantissa + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+
+    /**
+     * Prints count, mean and the usual percentiles, scaling values by the given divisor
+     * (e.g. 1e6 to print nanoseconds as milliseconds).
+     */
+    public void print(PrintStream out, String title, double divisor, String unit) {
+        out.println(summary(title, divisor, unit));
+    }
+
+    public String summary(String title, double divisor, String unit) {
+        return String.format("%s: count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f %s",
+                title, getCount(), getMean() / divisor,
+                getValueAtPercentile(50) / divisor, getValueAtPercentile(90) / divisor,
+                getValueAtPercentile(99) / divisor, getValueAtPercentile(99.9) / divisor,
+                getMax() / divisor, unit);
+    }
+}
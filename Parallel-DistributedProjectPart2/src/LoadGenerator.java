@@ -0,0 +1,327 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless load generator for the TCPServerRouter / TCPServer pipeline.
+ *
+ * Each scenario opens a number of concurrent client connections through the router and
+ * drives a mix of chain sizes and counts, either closed loop (each client sends its next
+ * request as soon as the previous one returns) or open loop (requests arrive at a fixed
+ * rate whether or not earlier ones have finished). Open-loop latency is measured from the
+ * intended arrival time, so queueing behind slow requests shows up in the percentiles.
+ *
+ * Usage:
+ *   java LoadGenerator [--router host:port] [--spawn servers] [--csv file] [--scenario spec]...
+ *
+ * A scenario spec is a comma-separated list of key=value pairs, for example
+ *   name=small,sizes=16|64,counts=2|4,clients=8,requests=400
+ *   name=paced,sizes=128,counts=8,clients=4,requests=200,mode=open,rate=20,warmup=20
+ *   name=deadline,sizes=512,counts=8,clients=4,requests=40,timeout=500
+ *   name=direct,sizes=512,counts=4,clients=4,requests=40,direct=true
+ *
+ * Every product is checked with verify Freivalds rounds (4 unless given; 0 skips the
+ * check). A wrong product is counted apart from errors and left out of the latencies.
+ *
+ * --spawn starts a router on the given port plus that many servers as child processes,
+ * so the whole pipeline runs on localhost.
+ */
+public class LoadGenerator {
+
+    private static class Scenario {
+        String name = "default";
+        int[] sizes = {64};
+        int[] counts = {4};
+        int clients = 4;
+        int requests = 100;
+        int warmup = 0;         // leading requests excluded from the latency figures
+        boolean openLoop = false;
+        double rate = 10.0;     // open loop arrival rate, requests per second
+        boolean poisson = true; // exponential inter-arrival times, otherwise evenly spaced
+        long timeoutMillis = 0; // per-request deadline sent to the server, 0 for its default
+        long seed = System.nanoTime();  // request i's chain is generated from (seed, i)
+        boolean direct = false; // send data straight to the server instead of through the router
+        int verifyRounds = 4;   // Freivalds rounds per product, 0 to trust the server
+
+        static Scenario parse(String spec) {
+            Scenario s = new Scenario();
+            for (String part : spec.split(",")) {
+                String[] kv = part.split("=", 2);
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("Expected key=value in scenario: " + part);
+                }
+                String value = kv[1].trim();
+                switch (kv[0].trim()) {
+                    case "name" -> s.name = value;
+                    case "sizes", "size" -> s.sizes = parseInts(value);
+                    case "counts", "count" -> s.counts = parseInts(value);
+                    case "clients" -> s.clients = Integer.parseInt(value);
+                    case "requests" -> s.requests = Integer.parseInt(value);
+                    case "warmup" -> s.warmup = Integer.parseInt(value);
+                    case "mode" -> s.openLoop = "open".equalsIgnoreCase(value);
+                    case "rate" -> s.rate = Double.parseDouble(value);
+                    case "arrivals" -> s.poisson = !"uniform".equalsIgnoreCase(value);
+                    case "timeout" -> s.timeoutMillis = Long.parseLong(value);
+                    case "seed" -> s.seed = Long.parseLong(value);
+                    case "direct" -> s.direct = Boolean.parseBoolean(value);
+                    case "verify" -> s.verifyRounds = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Unknown scenario key: " + kv[0]);
+                }
+            }
+            return s;
+        }
+
+        private static int[] parseInts(String value) {
+            return Arrays.stream(value.split("\\|")).mapToInt(Integer::parseInt).toArray();
+        }
+
+        String describe() {
+            return String.format("sizes=%s counts=%s clients=%d requests=%d %s",
+                    Arrays.toString(sizes), Arrays.toString(counts), clients, requests,
+                    openLoop ? String.format("open loop @ %.1f req/s", rate) : "closed loop")
+                    + (direct ? ", direct to server" : "");
+        }
+    }
+
+    private static class ScenarioResult {
+        final Scenario scenario;
+        final long[] latencies;  // nanoseconds, sorted
+        final int errors;
+        final int wrong;         // products that failed verification
+        final long elapsedNanos;
+        final int completed;
+
+        ScenarioResult(Scenario scenario, long[] latencies, int completed, int errors, int wrong, long elapsedNanos) {
+            this.scenario = scenario;
+            this.latencies = latencies;
+            this.completed = completed;
+            this.errors = errors;
+            this.wrong = wrong;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double throughput() {
+            return completed / (elapsedNanos / 1e9);
+        }
+
+        double percentileMillis(double p) {
+            if (latencies.length == 0) return Double.NaN;
+            int index = (int) Math.ceil(p * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 5555;
+        int spawnServers = 0;
+        String csvFile = null;
+        List<Scenario> scenarios = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--router" -> {
+                    String[] hp = args[++i].split(":");
+                    host = hp[0];
+                    port = Integer.parseInt(hp[1]);
+                }
+                case "--spawn" -> spawnServers = Integer.parseInt(args[++i]);
+                case "--csv" -> csvFile = args[++i];
+                case "--scenario" -> scenarios.add(Scenario.parse(args[++i]));
+                default -> {
+                    System.err.println("Unknown argument: " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+
+        if (scenarios.isEmpty()) {
+            scenarios.add(Scenario.parse("name=small-closed,sizes=16|32|64,counts=2|4,clients=8,requests=400,warmup=40"));
+            scenarios.add(Scenario.parse("name=mixed-open,sizes=64|128,counts=4|8,clients=8,requests=200,warmup=20,mode=open,rate=20"));
+        }
+
+        List<Process> cluster = spawnServers > 0 ? spawnCluster(port, spawnServers) : List.of();
+        try {
+            List<ScenarioResult> results = new ArrayList<>();
+            for (Scenario scenario : scenarios) {
+                System.out.println("\nRunning scenario " + scenario.name + ": " + scenario.describe());
+                ScenarioResult result = runScenario(host, port, scenario);
+                results.add(result);
+                printResult(result);
+            }
+            printSummary(results);
+            if (csvFile != null) {
+                saveCsv(csvFile, results);
+            }
+        } finally {
+            for (Process p : cluster) {
+                p.destroy();
+            }
+        }
+    }
+
+    private static ScenarioResult runScenario(String host, int port, Scenario scenario) throws InterruptedException {
+        long[] arrivals = scenario.openLoop ? arrivalOffsets(scenario) : null;
+        long[] latencies = new long[scenario.requests];
+        Arrays.fill(latencies, -1);
+        AtomicInteger nextRequest = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicInteger wrong = new AtomicInteger();
+
+        ExecutorService clients = Executors.newFixedThreadPool(scenario.clients);
+        long start = System.nanoTime();
+
+        for (int c = 0; c < scenario.clients; c++) {
+            clients.execute(() -> {
+                try (MatrixClient client = new MatrixClient(host, port, 1)) {
+                    client.setDirectData(scenario.direct);
+                    while (true) {
+                        int i = nextRequest.getAndIncrement();
+                        if (i >= scenario.requests) break;
+
+                        // Request i is the same on every run with the same seed
+                        SplittableRandom random = new SplittableRandom(MatrixGenerator.seedOf(scenario.seed, i));
+                        int size = scenario.sizes[random.nextInt(scenario.sizes.length)];
+                        int count = scenario.counts[random.nextInt(scenario.counts.length)];
+                        matrix[] chain = MatrixGenerator.generateChain(size, count, 1, 10, random.nextLong());
+
+                        long intended;
+                        if (arrivals != null) {
+                            intended = start + arrivals[i];
+                            long wait = intended - System.nanoTime();
+                            if (wait > 0) {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            }
+                        } else {
+                            intended = System.nanoTime();
+                        }
+
+                        try {
+                            matrix result = client.multiply(chain, scenario.timeoutMillis).get();
+                            long latency = System.nanoTime() - intended;
+                            if (scenario.verifyRounds > 0
+                                    && !FreivaldsVerifier.verify(chain, result, scenario.verifyRounds, random.nextLong())) {
+                                wrong.incrementAndGet();
+                                Log.warn("Request " + i + " of " + scenario.name + " returned a wrong product");
+                            } else {
+                                latencies[i] = latency;
+                            }
+                        } catch (ExecutionException e) {
+                            // Rejected, cancelled or failed; the client reconnects for the next one
+                            errors.incrementAndGet();
+                            Log.debug("Request failed: " + e.getCause());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        long elapsed = System.nanoTime() - start;
+
+        int completed = 0;
+        long[] measured = new long[scenario.requests];
+        int n = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            if (latencies[i] >= 0) {
+                completed++;
+                if (i >= scenario.warmup) {
+                    measured[n++] = latencies[i];
+                }
+            }
+        }
+        long[] sorted = Arrays.copyOf(measured, n);
+        Arrays.sort(sorted);
+        return new ScenarioResult(scenario, sorted, completed, errors.get(), wrong.get(), elapsed);
+    }
+
+    private static long[] arrivalOffsets(Scenario scenario) {
+        long[] offsets = new long[scenario.requests];
+        double meanGap = 1e9 / scenario.rate;
+        Random random = new Random(scenario.name.hashCode());
+        double t = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (long) t;
+            t += scenario.poisson ? -Math.log(1 - random.nextDouble()) * meanGap : meanGap;
+        }
+        return offsets;
+    }
+
+    // Starts a router and the given number of servers from this JVM's classpath
+    private static List<Process> spawnCluster(int port, int servers) throws IOException, InterruptedException {
+        List<Process> processes = new ArrayList<>();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classpath = System.getProperty("java.class.path");
+
+        processes.add(new ProcessBuilder(java, "-Dlog.level=WARN", "-cp", classpath, "TCPServerRouter", String.valueOf(port))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start());
+        waitForPort(port);
+
+        for (int i = 0; i < servers; i++) {
+            processes.add(new ProcessBuilder(java, "-Dserver.baseline=false", "-Dserver.dataPort=0", "-Dlog.level=WARN", "-cp", classpath,
+                    "TCPServer", "localhost", String.valueOf(port))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start());
+        }
+        // Give the servers time to register with the router before clients arrive
+        Thread.sleep(1500);
+        System.out.println("Spawned router on port " + port + " with " + servers + " server(s)");
+        return processes;
+    }
+
+    private static void waitForPort(int port) throws InterruptedException, IOException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Router did not start listening on port " + port);
+    }
+
+    private static void printResult(ScenarioResult r) {
+        System.out.printf("Completed: %d/%d  Errors: %d  Wrong: %d  Elapsed: %.2f s%n",
+                r.completed, r.scenario.requests, r.errors, r.wrong, r.elapsedNanos / 1e9);
+        System.out.printf("Throughput: %.1f req/s%n", r.throughput());
+        System.out.printf("Latency (ms): p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+                r.percentileMillis(0.50), r.percentileMillis(0.99),
+                r.percentileMillis(0.999), r.percentileMillis(1.0));
+    }
+
+    private static void printSummary(List<ScenarioResult> results) {
+        System.out.println("\nLoad Test Summary:");
+        System.out.printf("%-16s %-6s %7s %6s %6s %6s %10s %9s %9s %9s%n",
+                "Scenario", "Mode", "Clients", "Done", "Errors", "Wrong", "Req/s", "p50 ms", "p99 ms", "p999 ms");
+        for (ScenarioResult r : results) {
+            System.out.printf("%-16s %-6s %7d %6d %6d %6d %10.1f %9.2f %9.2f %9.2f%n",
+                    r.scenario.name, r.scenario.openLoop ? "open" : "closed", r.scenario.clients,
+                    r.completed, r.errors, r.wrong, r.throughput(),
+                    r.percentileMillis(0.50), r.percentileMillis(0.99), r.percentileMillis(0.999));
+        }
+    }
+
+    private static void saveCsv(String file, List<ScenarioResult> results) {
+        try (PrintWriter writer = new PrintWriter(file)) {
+            writer.println("Scenario,Mode,Clients,Requests,Completed,Errors,Wrong,Throughput,P50Ms,P99Ms,P999Ms,MaxMs");
+            for (ScenarioResult r : results) {
+                writer.printf("%s,%s,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f%n",
+                        r.scenario.name, r.scenario.openLoop ? "open" : "closed", r.scenario.clients,
+                        r.scenario.requests, r.completed, r.errors, r.wrong, r.throughput(),
+                        r.percentileMillis(0.50), r.percentileMillis(0.99),
+                        r.percentileMillis(0.999), r.percentileMillis(1.0));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to save load test results: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.function.Supplier;
+
+/**
+ * Minimal leveled console logging. The level comes from -Dlog.level (ERROR, WARN, INFO
+ * or DEBUG; default INFO). Per-message chatter belongs at DEBUG so that busy servers and
+ * routers don't pay for console output on every forwarded object.
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static volatile Level level = parse(System.getProperty("log.level", "INFO"));
+
+    private Log() {
+    }
+
+    private static Level parse(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log.level '" + name + "', using INFO");
+            return Level.INFO;
+        }
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() <= level.ordinal();
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) System.out.println(message);
+    }
+
+    // Deferred form for hot paths: the message is only built when DEBUG is on
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) System.out.println(message.get());
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) System.out.println(message);
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) System.err.println(message);
+    }
+
+    public static void error(String message) {
+        System.err.println(message);
+    }
+
+    public static void error(String message, Throwable t) {
+        System.err.println(message);
+        t.printStackTrace();
+    }
+}
@@ -0,0 +1,227 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of matrix products, sized in bytes and keyed by the content of
+ * the chain that produced each product.
+ *
+ * The cache is shared by every client of a server, so a key must not be forgeable: two
+ * chains share a key only if their matrices have the same SHA-256 digests in the same
+ * order. Keys compare those digests in full rather than a hash folded from them.
+ *
+ * Cached arrays are shared between callers and must be treated as read-only.
+ *
+ * Intermediate products (of subchains rather than whole requests) share the budget but
+ * may hold at most a part of it, so a long reduction cannot fill the cache with products
+ * nothing asks for again.
+ */
+public class MatrixCache {
+    /**
+     * Identifies the product of a contiguous run of matrices: the digests of its matrices
+     * in order, with runs of one matrix stored once with a count. A subchain gets the same
+     * key no matter how the reduction tree splits it, and a power does not grow the key.
+     */
+    public static final class Key {
+        private final byte[][] digests;
+        private final long[] counts;  // digests[i] repeats counts[i] times; neighbours differ
+        final int rows;
+        final int cols;
+        private final int hash;
+
+        private Key(byte[][] digests, long[] counts, int rows, int cols) {
+            this.digests = digests;
+            this.counts = counts;
+            this.rows = rows;
+            this.cols = cols;
+            int h = rows * 31 + cols;
+            for (int i = 0; i < digests.length; i++) {
+                h = h * 31 + Arrays.hashCode(digests[i]);
+                h = h * 31 + Long.hashCode(counts[i]);
+            }
+            this.hash = h;
+        }
+
+        public static Key of(matrix m) {
+            return new Key(new byte[][]{m.contentDigest()}, new long[]{1}, m.getRows(), m.getCols());
+        }
+
+        // Key of the chain "left followed by right"
+        public static Key concat(Key left, Key right) {
+            boolean merge = Arrays.equals(left.digests[left.digests.length - 1], right.digests[0]);
+            int runs = left.digests.length + right.digests.length - (merge ? 1 : 0);
+            byte[][] digests = Arrays.copyOf(left.digests, runs);
+            long[] counts = Arrays.copyOf(left.counts, runs);
+            int offset = left.digests.length - (merge ? 1 : 0);
+            for (int i = 0; i < right.digests.length; i++) {
+                digests[offset + i] = right.digests[i];
+                counts[offset + i] = (merge && i == 0 ? counts[offset] : 0) + right.counts[i];
+            }
+            return new Key(digests, counts, left.rows, right.cols);
+        }
+
+        // Key of the chain "key" repeated the given number of times
+        public static Key repeat(Key key, int times) {
+            if (key.digests.length == 1) {
+                return new Key(key.digests, new long[]{key.counts[0] * times}, key.rows, key.cols);
+            }
+            Key result = null;
+            Key square = key;
+            while (true) {
+                if ((times & 1) != 0) {
+                    result = result == null ? square : concat(result, square);
+                }
+                times >>>= 1;
+                if (times == 0) return result;
+                square = concat(square, square);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && rows == k.rows && cols == k.cols
+                    && Arrays.equals(counts, k.counts) && Arrays.deepEquals(digests, k.digests);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final LinkedHashMap<Key, int[][]> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<Key> intermediates = new HashSet<>();
+    private final long maxBytes;
+    private final long maxIntermediateBytes;
+    private long currentBytes;
+    private long intermediateBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MatrixCache(long maxBytes) {
+        this(maxBytes, maxBytes);
+    }
+
+    public MatrixCache(long maxBytes, long maxIntermediateBytes) {
+        this.maxBytes = maxBytes;
+        this.maxIntermediateBytes = Math.min(maxIntermediateBytes, maxBytes);
+    }
+
+    public synchronized int[][] get(Key key) {
+        int[][] value = entries.get(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public synchronized void put(Key key, int[][] value) {
+        put(key, value, false);
+    }
+
+    // Caches the product of a subchain within the intermediate share of the budget. A key
+    // already cached as a whole product stays one.
+    public synchronized void putIntermediate(Key key, int[][] value) {
+        if (entries.containsKey(key) && !intermediates.contains(key)) {
+            return;
+        }
+        put(key, value, true);
+    }
+
+    private void put(Key key, int[][] value, boolean intermediate) {
+        long size = sizeOf(value);
+        if (size > (intermediate ? maxIntermediateBytes : maxBytes)) {
+            return;
+        }
+        int[][] previous = entries.put(key, value);
+        if (previous != null) {
+            remove(key, previous);
+        }
+        currentBytes += size;
+        if (intermediate) {
+            intermediates.add(key);
+            intermediateBytes += size;
+        }
+
+        // Evict least recently used entries until we are back under budget, and least
+        // recently used intermediates until they are back under their share
+        Iterator<Map.Entry<Key, int[][]>> it = entries.entrySet().iterator();
+        while ((currentBytes > maxBytes || intermediateBytes > maxIntermediateBytes) && it.hasNext()) {
+            Map.Entry<Key, int[][]> eldest = it.next();
+            if (eldest.getKey().equals(key)) continue;
+            if (currentBytes <= maxBytes && !intermediates.contains(eldest.getKey())) continue;
+            remove(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Takes an entry's bytes off the counts; the caller removes it from entries
+    private void remove(Key key, int[][] value) {
+        long size = sizeOf(value);
+        currentBytes -= size;
+        if (intermediates.remove(key)) {
+            intermediateBytes -= size;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        intermediates.clear();
+        currentBytes = 0;
+        intermediateBytes = 0;
+    }
+
+    static long sizeOf(int[][] data) {
+        // Row payloads plus a rough per-array header
+        return (long) data.length * (data[0].length * 4L + 16) + 16;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getSizeBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getIntermediateBytes() {
+        return intermediateBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d hitRate=%.2f%% evictions=%d entries=%d size=%.1f/%.1f MB",
+                getHits(), getMisses(), getHitRate() * 100, getEvictions(), getEntryCount(),
+                getSizeBytes() / 1048576.0, maxBytes / 1048576.0);
+    }
+}
@@ -0,0 +1,565 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous client for the router/server pipeline. Keeps a small pool of persistent
+ * router connections, each carrying any number of requests at once: headers, payloads
+ * and results for different requests interleave on one connection and are matched up by
+ * request id.
+ *
+ * A connection that breaks is replaced on next use, and the requests it was carrying are
+ * sent again on another connection (multiplication is idempotent) with exponential
+ * backoff, up to {@code maxRetries} times before their futures fail.
+ *
+ * {@link #openChain} keeps a chain on the server so single matrices can be replaced and
+ * subranges queried without sending or recomputing the rest. A chain lives on the
+ * connection that opened it and is lost, not retried, if that connection breaks.
+ *
+ * With {@link #setDirectData} each connection asks the router for its server's address and
+ * sends requests and receives results on a socket straight to that server, keeping the
+ * router connection only to hold the session.
+ *
+ * <pre>
+ *   try (MatrixClient client = new MatrixClient("localhost", 5555, 4)) {
+ *       matrix product = client.multiply(chain).get();
+ *   }
+ * </pre>
+ */
+public class MatrixClient implements Closeable {
+    // The server turned the request down before running it
+    public static class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    // The server accepted the request but could not compute it
+    public static class RequestFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestFailedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class Pending {
+        final long requestId;
+        final matrix[] chain;
+        final long timeoutMillis;
+        final boolean openChain;  // Keep the chain on the server after computing its product
+        final Object direct;      // Chain message sent as is, without a header; null otherwise
+        int[][] vectors;          // Apply the chain to these instead of forming its product
+        BitMatrix[] bitChain;     // A boolean chain, sent in place of chain
+        final CompletableFuture<Protocol.Result> future = new CompletableFuture<>();
+        int attempts;
+
+        Pending(long requestId, matrix[] chain, long timeoutMillis) {
+            this(requestId, chain, timeoutMillis, false, null);
+        }
+
+        Pending(long requestId, matrix[] chain, long timeoutMillis, boolean openChain, Object direct) {
+            this.requestId = requestId;
+            this.chain = chain;
+            this.timeoutMillis = timeoutMillis;
+            this.openChain = openChain;
+            this.direct = direct;
+        }
+
+        // Chain requests only make sense on the connection holding the chain
+        boolean isBound() {
+            return openChain || direct != null;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Connection[] pool;
+    private final int maxRetries;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    // Sent with every request so the server schedules all of this client's connections as
+    // one client; random so another client cannot guess it and share its quota
+    private final long clientId = new SecureRandom().nextLong() | 1;
+    private static final long RETRY_BACKOFF_MILLIS = 250;
+    private static final int DIRECT_CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "matrix-client-retry");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean closed;
+    private volatile int verifyRounds;
+    private volatile boolean directData;
+
+    public MatrixClient(String host, int port, int connections) {
+        this(host, port, connections, 3);
+    }
+
+    public MatrixClient(String host, int port, int connections, int maxRetries) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("Need at least one connection: " + connections);
+        }
+        this.host = host;
+        this.port = port;
+        this.pool = new Connection[connections];
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Checks every result with this many Freivalds rounds before completing its future;
+     * a result that fails completes exceptionally with RequestFailedException. 0 (the
+     * default) trusts the server.
+     */
+    public void setVerifyRounds(int rounds) {
+        this.verifyRounds = rounds;
+    }
+
+    /**
+     * Sends matrices straight to the server the router picks instead of through the router,
+     * saving a hop and the router's copy of every payload. A connection whose server takes
+     * no direct connections, or cannot be reached, relays through the router as usual.
+     * Applies to connections opened after the call.
+     */
+    public void setDirectData(boolean direct) {
+        this.directData = direct;
+    }
+
+    public CompletableFuture<matrix> multiply(matrix[] chain) {
+        return multiply(chain, 0);
+    }
+
+    /**
+     * Sends the chain to a server and completes with its product. The future fails with
+     * RejectedException if admission control turns the request down, CancellationException
+     * if the deadline passes, RequestFailedException if the server fails it, or
+     * IOException if no connection can be made.
+     *
+     * @param timeoutMillis deadline for the server, 0 for its default
+     */
+    public CompletableFuture<matrix> multiply(matrix[] chain, long timeoutMillis) {
+        if (chain == null || chain.length == 0) {
+            throw new IllegalArgumentException("Chain must contain at least one matrix");
+        }
+        Pending request = new Pending(nextRequestId.incrementAndGet(), chain, timeoutMillis);
+        dispatch(request);
+        return request.future.thenApply(result -> result.result);
+    }
+
+    public CompletableFuture<int[][]> multiplyVectors(matrix[] chain, int[]... vectors) {
+        return multiplyVectors(chain, vectors, 0);
+    }
+
+    /**
+     * Completes with M1 M2 ... Mk v for each vector v, computed on the server right to left
+     * with matrix-vector products only; much cheaper than the full product when a few
+     * vectors (or columns of the product, via unit vectors) are all that is needed. Fails
+     * as {@link #multiply(matrix[], long)} does.
+     */
+    public CompletableFuture<int[][]> multiplyVectors(matrix[] chain, int[][] vectors, long timeoutMillis) {
+        if (chain == null || chain.length == 0) {
+            throw new IllegalArgumentException("Chain must contain at least one matrix");
+        }
+        if (vectors == null || vectors.length == 0) {
+            throw new IllegalArgumentException("Need at least one vector");
+        }
+        Pending request = new Pending(nextRequestId.incrementAndGet(), chain, timeoutMillis);
+        request.vectors = vectors;
+        dispatch(request);
+        return request.future.thenApply(result -> result.vectors);
+    }
+
+    public CompletableFuture<BitMatrix> multiplyBoolean(BitMatrix[] chain) {
+        return multiplyBoolean(chain, 0);
+    }
+
+    /**
+     * Completes with the boolean product of the chain (entry i, j is set when some path of
+     * set entries leads from i to j). Each matrix travels at one bit per entry. Fails as
+     * {@link #multiply(matrix[], long)} does.
+     */
+    public CompletableFuture<BitMatrix> multiplyBoolean(BitMatrix[] chain, long timeoutMillis) {
+        if (chain == null || chain.length == 0) {
+            throw new IllegalArgumentException("Chain must contain at least one matrix");
+        }
+        Pending request = new Pending(nextRequestId.incrementAndGet(), null, timeoutMillis);
+        request.bitChain = chain;
+        dispatch(request);
+        return request.future.thenApply(result -> result.bits);
+    }
+
+    /**
+     * Sends the chain to a server that keeps it, and completes with a handle holding its
+     * product. Admission, rejection and deadlines work as for {@link #multiply}; the chain
+     * holds its memory reservation on the server until it is closed.
+     */
+    public CompletableFuture<Chain> openChain(matrix[] chain) {
+        if (chain == null || chain.length == 0) {
+            throw new IllegalArgumentException("Chain must contain at least one matrix");
+        }
+        Pending request = new Pending(nextRequestId.incrementAndGet(), chain, 0, true, null);
+        Connection connection;
+        try {
+            connection = connection();
+            connection.send(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return request.future.thenApply(result -> new Chain(connection, request.requestId, result.result));
+    }
+
+    private void dispatch(Pending request) {
+        if (closed) {
+            request.future.completeExceptionally(new IOException("Client closed"));
+            return;
+        }
+        request.attempts++;
+        try {
+            connection().send(request);
+        } catch (IOException e) {
+            retryOrFail(request, e);
+        }
+    }
+
+    private void retryOrFail(Pending request, IOException cause) {
+        if (request.attempts <= maxRetries && !closed && !request.isBound()) {
+            long delay = RETRY_BACKOFF_MILLIS << (request.attempts - 1);
+            Log.debug("Retrying request " + request.requestId + " in " + delay + " ms after: " + cause.getMessage());
+            retryTimer.schedule(() -> dispatch(request), delay, TimeUnit.MILLISECONDS);
+        } else {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    // The live connection with the fewest requests in flight, replacing broken ones
+    private synchronized Connection connection() throws IOException {
+        Connection best = null;
+        for (int i = 0; i < pool.length; i++) {
+            if (pool[i] == null || !pool[i].alive) {
+                pool[i] = new Connection();
+            }
+            if (best == null || pool[i].pending.size() < best.pending.size()) {
+                best = pool[i];
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            for (Connection c : pool) {
+                if (c != null) c.close();
+            }
+        }
+    }
+
+    /**
+     * A chain kept open on a server. Updates and queries run in the order they are made.
+     */
+    public final class Chain implements Closeable {
+        private final Connection connection;
+        private final long chainId;
+        private volatile matrix product;
+
+        private Chain(Connection connection, long chainId, matrix product) {
+            this.connection = connection;
+            this.chainId = chainId;
+            this.product = product;
+        }
+
+        // Product of the whole chain as of the last completed open or update
+        public matrix getProduct() {
+            return product;
+        }
+
+        // Replaces matrix index (square, of the chain's size) and completes with the new product
+        public CompletableFuture<matrix> update(int index, matrix replacement) {
+            long requestId = nextRequestId.incrementAndGet();
+            return send(requestId, new Protocol.ChainUpdate(requestId, chainId, index, replacement))
+                    .thenApply(p -> product = p);
+        }
+
+        // Product of matrices from through to, inclusive
+        public CompletableFuture<matrix> query(int from, int to) {
+            long requestId = nextRequestId.incrementAndGet();
+            return send(requestId, new Protocol.ChainQuery(requestId, chainId, from, to));
+        }
+
+        private CompletableFuture<matrix> send(long requestId, Object message) {
+            Pending request = new Pending(requestId, null, 0, false, message);
+            try {
+                connection.send(request);
+            } catch (IOException e) {
+                request.future.completeExceptionally(e);
+            }
+            return request.future.thenApply(result -> result.result);
+        }
+
+        // Frees the chain on the server
+        @Override
+        public void close() {
+            try {
+                connection.write(new Protocol.ChainClose(chainId));
+            } catch (IOException ignored) {
+                // The connection is gone, and the chain with it
+            }
+        }
+    }
+
+    // One router connection, the direct one to its server if there is one, and the threads
+    // reading their responses. Readers never write or compute: a reader blocked writing a
+    // large payload stops draining results, and once the server blocks writing those the
+    // two sides wait on each other. Payloads go out on the connection's writer thread and
+    // results are verified on the common pool.
+    private class Connection {
+        private final Socket socket;
+        private final ObjectOutputStream routerOut;
+        private final ObjectInputStream routerIn;
+        private Socket dataSocket;          // Straight to the server; null when relaying
+        private ObjectInputStream dataIn;
+        private ObjectOutputStream out;     // Where requests go: the data socket if there is one
+        private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+        private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "matrix-client-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        private volatile boolean alive = true;
+
+        Connection() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            routerOut = new ObjectOutputStream(socket.getOutputStream());
+            routerOut.flush();
+            routerIn = new ObjectInputStream(socket.getInputStream());
+            out = routerOut;
+            try {
+                routerOut.writeObject("127.0.0.1");
+                routerOut.flush();
+                routerIn.readObject(); // Router confirmation
+                if (directData) {
+                    connectDirect();
+                }
+            } catch (ClassNotFoundException e) {
+                socket.close();
+                throw new IOException("Unexpected router handshake", e);
+            }
+            startReader(routerIn, socket);
+            if (dataSocket != null) {
+                startReader(dataIn, dataSocket);
+            }
+        }
+
+        // Moves this connection's traffic onto a socket to its server if the router offers
+        // one and the server can be reached; otherwise it stays on the router
+        private void connectDirect() throws IOException, ClassNotFoundException {
+            routerOut.writeObject(new Protocol.DirectRequest());
+            routerOut.flush();
+            Object reply = routerIn.readObject();
+            if (!(reply instanceof Protocol.DirectRoute) || ((Protocol.DirectRoute) reply).host == null) {
+                Log.debug("Server takes no direct connections, relaying through the router");
+                return;
+            }
+            Protocol.DirectRoute route = (Protocol.DirectRoute) reply;
+            Socket data = new Socket();
+            try {
+                data.connect(new InetSocketAddress(route.host, route.port), DIRECT_CONNECT_TIMEOUT_MILLIS);
+                data.setTcpNoDelay(true);
+                data.setSoTimeout(DIRECT_CONNECT_TIMEOUT_MILLIS * 4);  // The server may wait for its grant
+                ObjectOutputStream dataOut = new ObjectOutputStream(data.getOutputStream());
+                dataOut.flush();
+                ObjectInputStream in = new ObjectInputStream(data.getInputStream());
+                dataOut.writeObject(new Protocol.DirectHello(route.sessionId, route.token));
+                dataOut.flush();
+                Object confirmation = in.readObject();
+                if (!Protocol.DIRECT_ACCEPTED.equals(confirmation)) {
+                    throw new IOException("refused: " + confirmation);
+                }
+                data.setSoTimeout(0);
+                dataSocket = data;
+                dataIn = in;
+                out = dataOut;
+            } catch (IOException e) {
+                data.close();
+                Log.debug("Direct connection to " + route.host + ":" + route.port
+                        + " failed, relaying through the router: " + e.getMessage());
+            }
+        }
+
+        private void startReader(ObjectInputStream in, Socket from) {
+            Thread reader = new Thread(() -> readLoop(in), "matrix-client-" + from.getLocalPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(Pending request) throws IOException {
+            pending.put(request.requestId, request);
+            if (!alive) {
+                // Lost the race with readLoop's cleanup; whoever removes the request retries it
+                if (pending.remove(request.requestId) != null) {
+                    throw new IOException("Connection to router lost");
+                }
+                return;
+            }
+            try {
+                Object message = request.direct;
+                if (message == null) {
+                    Protocol.RequestHeader header;
+                    if (request.bitChain != null) {
+                        header = Protocol.RequestHeader.describe(request.requestId, request.bitChain,
+                                request.timeoutMillis);
+                    } else if (request.vectors != null) {
+                        header = Protocol.RequestHeader.describe(request.requestId, request.chain, request.vectors,
+                                request.timeoutMillis);
+                    } else {
+                        header = Protocol.RequestHeader.describe(request.requestId, request.chain,
+                                request.timeoutMillis);
+                    }
+                    message = header.forClient(clientId);
+                }
+                write(message);
+            } catch (IOException e) {
+                pending.remove(request.requestId);
+                throw e;
+            }
+        }
+
+        private void write(Object message) throws IOException {
+            synchronized (out) {
+                out.writeObject(message);
+                out.reset(); // Every request carries fresh matrices, never back-references
+                out.flush();
+            }
+        }
+
+        // Either socket closing ends the session, so both readers give up the connection
+        private void readLoop(ObjectInputStream in) {
+            try {
+                while (alive) {
+                    Object message = in.readObject();
+                    if (message instanceof Protocol.Admission) {
+                        onAdmission((Protocol.Admission) message);
+                    } else if (message instanceof Protocol.Result) {
+                        onResult((Protocol.Result) message);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                if (alive) {
+                    Log.debug("Router connection lost: " + e.getMessage());
+                }
+            } finally {
+                alive = false;
+                closeSocket();
+                writer.shutdownNow();
+                // Whatever this connection was carrying goes out again on another one
+                for (Pending request : pending.values()) {
+                    if (pending.remove(request.requestId) != null) {
+                        retryOrFail(request, new IOException("Connection to router lost"));
+                    }
+                }
+            }
+        }
+
+        private void onAdmission(Protocol.Admission admission) {
+            Pending request = pending.get(admission.requestId);
+            if (request == null) return;
+            switch (admission.decision) {
+                case ADMITTED -> {
+                    try {
+                        writer.execute(() -> writePayload(request));
+                    } catch (RejectedExecutionException e) {
+                        // Closing; the request fails with the connection
+                    }
+                }
+                case QUEUED -> Log.debug("Request " + request.requestId + " queued: " + admission.reason);
+                case REJECTED -> {
+                    pending.remove(request.requestId);
+                    request.future.completeExceptionally(new RejectedException(admission.reason));
+                }
+            }
+        }
+
+        // A failed write ends the connection; its readers then retry what it was carrying
+        private void writePayload(Pending request) {
+            try {
+                write(payloadFor(request));
+            } catch (IOException e) {
+                Log.debug("Failed to send payload of request " + request.requestId + ": " + e.getMessage());
+                closeSocket();
+            }
+        }
+
+        private Object payloadFor(Pending request) {
+            if (request.openChain) {
+                return new Protocol.ChainOpen(request.requestId, request.chain);
+            }
+            if (request.bitChain != null) {
+                return new Protocol.BitPayload(request.requestId, request.bitChain);
+            }
+            if (request.vectors != null) {
+                return new Protocol.VectorPayload(request.requestId, request.chain, request.vectors);
+            }
+            return new Protocol.Payload(request.requestId, request.chain);
+        }
+
+        private void onResult(Protocol.Result result) {
+            Pending request = pending.remove(result.requestId);
+            if (request == null) return;
+            int rounds = verifyRounds;
+            if (result.result != null && rounds > 0 && request.chain != null) {
+                CompletableFuture.supplyAsync(
+                        () -> FreivaldsVerifier.verify(request.chain, result.result, rounds, System.nanoTime()))
+                        .whenComplete((passed, e) -> {
+                            if (e != null) {
+                                request.future.completeExceptionally(e);
+                            } else if (passed) {
+                                request.future.complete(result);
+                            } else {
+                                request.future.completeExceptionally(
+                                        new RequestFailedException("result failed verification"));
+                            }
+                        });
+            } else if (result.result != null || result.vectors != null || result.bits != null) {
+                request.future.complete(result);
+            } else if (result.error != null && result.error.startsWith("cancelled")) {
+                request.future.completeExceptionally(new CancellationException(result.error));
+            } else {
+                request.future.completeExceptionally(new RequestFailedException(result.error));
+            }
+        }
+
+        void close() {
+            if (!alive) return;
+            alive = false;
+            // Through the router, which ends the session there and on the server
+            synchronized (routerOut) {
+                try {
+                    routerOut.writeObject("Bye.");
+                    routerOut.flush();
+                } catch (IOException ignored) {
+                    // Already gone
+                }
+            }
+            closeSocket();
+            writer.shutdownNow();
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+                if (dataSocket != null) {
+                    dataSocket.close();
+                }
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+        }
+    }
+}
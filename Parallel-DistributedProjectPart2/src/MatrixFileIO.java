@@ -1,32 +1,64 @@
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
 
 public class MatrixFileIO {
     private static ExecutorService executor;
     private static int numberOfThreads = 1;
     private static final int SEQUENTIAL_THRESHOLD = 64;
 
+    // Products of repeated subchains, shared across requests. Products of subchains that are
+    // not a whole request may fill at most matrix.cache.intermediateMb of it.
+    private static final MatrixCache cache = new MatrixCache(
+            Long.getLong("matrix.cache.mb", 256) * 1024 * 1024,
+            Long.getLong("matrix.cache.intermediateMb", 64) * 1024 * 1024);
+    private static volatile boolean cacheEnabled = true;
+
+    // Intermediate products a reduction may hold at once; 0 picks twice the thread count.
+    // Never less than the tree depth + 1, which the evaluation order needs to make progress.
+    private static final int MAX_INTERMEDIATES = Integer.getInteger("matrix.maxIntermediates", 0);
+
+    // Timing of the most recent parallel reduction run by each thread
+    private static final ThreadLocal<ReductionTrace> lastTrace = new ThreadLocal<>();
+
+    // Set when several reductions share the pool (a server); it then outlives each of them
+    private static volatile boolean sharedPool;
+
     // Node class for binary tree structure
     private static class MatrixNode {
         matrix value;
         MatrixNode left;
         MatrixNode right;
-        volatile Future<int[][]> result;
+        volatile CompletableFuture<int[][]> result;
         final int level;  // Track level in tree for thread allocation
+        MatrixCache.Key key;  // Content key of the subchain under this node
+        boolean root;         // Its product is the whole request's, cached outside the intermediate share
+        int exponent = 1;     // Leaves stand for value^exponent (runs of identical matrices)
+        int first;            // Chain positions covered by this node
+        int last;
+        ReductionTrace.Span span;  // Task that produced this node's result, if any
+        double cost;          // Estimated multiply-adds to produce this node from its children
+        int parallelism = 1;  // Threads its product may use, set by planParallelism
+        int need;             // Sethi-Ullman label: intermediates live while evaluating this subtree
 
         MatrixNode(matrix value, int level) {
             this.value = value;
             this.level = level;
         }
-    }
 
-    public static void initializeThreadPool(int matrixCount) {
-        if (executor != null && !executor.isShutdown()) {
-            executor.shutdown();
+        String label() {
+            String range = first == last ? "M" + (first + 1) : "M" + (first + 1) + "-M" + (last + 1);
+            return exponent > 1 ? range + " (M" + (first + 1) + "^" + exponent + ")" : range;
         }
+    }
 
+    public static void initializeThreadPool(int matrixCount) {
         // Set number of threads based on matrix count as per requirements
-        numberOfThreads = switch (matrixCount) {
+        int threads = switch (matrixCount) {
             case 2 -> 1;   // p = 1
             case 4 -> 3;   // p = 3
             case 8 -> 7;   // p = 7
@@ -35,68 +67,499 @@ public class MatrixFileIO {
             default -> 1;  // default to single thread
         };
 
-        System.out.println("Initializing thread pool with " + numberOfThreads + " threads for " +
+        Log.debug("Initializing thread pool with " + threads + " threads for " +
                 matrixCount + " matrices");
-        executor = Executors.newFixedThreadPool(numberOfThreads);
+        initializeFixedThreadPool(threads);
+    }
+
+    // Pool with an explicit thread count, independent of the matrix count (used by benchmarks).
+    // A fork/join pool, so a product split into subtasks can be worked on by idle threads.
+    public static void initializeFixedThreadPool(int threads) {
+        if (executor != null && !executor.isShutdown()) {
+            executor.shutdown();
+        }
+        numberOfThreads = threads;
+        executor = new ForkJoinPool(numberOfThreads);
+    }
+
+    /**
+     * Pool for a process that runs several reductions at once: it is not shut down when
+     * a reduction of two matrices finishes.
+     */
+    public static void initializeSharedPool(int threads) {
+        initializeFixedThreadPool(threads);
+        sharedPool = true;
+    }
+
+    // Build binary tree from matrix array, collapsing runs of identical matrices into powers.
+    // Nodes get cache keys only when useCache is set (and the cache is on at all).
+    private static MatrixNode buildTree(matrix[] matrices, boolean useCache) {
+        int[] runLengths = new int[matrices.length];
+        int[] runStarts = new int[matrices.length];
+        matrix[] runValues = new matrix[matrices.length];
+        int runs = 0;
+        for (int i = 0; i < matrices.length; i++) {
+            if (runs > 0 && isRepeat(runValues[runs - 1], matrices[i])) {
+                runLengths[runs - 1]++;
+            } else {
+                runValues[runs] = matrices[i];
+                runStarts[runs] = i;
+                runLengths[runs] = 1;
+                runs++;
+            }
+        }
+        return buildTree(runValues, runLengths, runStarts, 0, runs - 1, 0, useCache && cacheEnabled);
     }
 
-    // Build binary tree from matrix array
-    private static MatrixNode buildTree(matrix[] matrices, int start, int end, int level) {
+    private static boolean isRepeat(matrix previous, matrix current) {
+        return previous == current
+                || (previous.getRows() == current.getRows() && previous.getCols() == current.getCols()
+                && Arrays.equals(previous.fingerprint(), current.fingerprint())
+                && previous.contentEquals(current));
+    }
+
+    private static MatrixNode buildTree(matrix[] matrices, int[] exponents, int[] positions,
+                                        int start, int end, int level, boolean useCache) {
         if (start > end) return null;
-        if (start == end) return new MatrixNode(matrices[start], level);
+        if (start == end) {
+            MatrixNode leaf = new MatrixNode(matrices[start], level);
+            leaf.exponent = exponents[start];
+            leaf.first = positions[start];
+            leaf.last = positions[start] + exponents[start] - 1;
+            if (useCache) {
+                leaf.key = MatrixCache.Key.repeat(MatrixCache.Key.of(matrices[start]), leaf.exponent);
+            }
+            return leaf;
+        }
 
         int mid = (start + end) / 2;
         MatrixNode root = new MatrixNode(null, level);
-        root.left = buildTree(matrices, start, mid, level + 1);
-        root.right = buildTree(matrices, mid + 1, end, level + 1);
+        root.left = buildTree(matrices, exponents, positions, start, mid, level + 1, useCache);
+        root.right = buildTree(matrices, exponents, positions, mid + 1, end, level + 1, useCache);
+        root.first = root.left.first;
+        root.last = root.right.last;
+        if (useCache) {
+            root.key = MatrixCache.Key.concat(root.left.key, root.right.key);
+        }
         return root;
     }
 
-    // Process tree nodes in parallel
-    private static Future<int[][]> processNode(MatrixNode node) throws ExecutionException, InterruptedException {
+    // Estimated multiply-adds for one n x n product with the kernel multiplyMatrices picks
+    static double productCost(int n) {
+        if (n <= SEQUENTIAL_THRESHOLD || (n & 1) != 0) {
+            return (double) n * n * n;
+        }
+        int half = n / 2;
+        return 7 * productCost(half) + 18.0 * half * half;
+    }
+
+    /**
+     * Gives every node its cost and a share of the pool. Nodes of the same height (distance
+     * from the leaves) tend to run at the same time, so each height's threads are split
+     * between its nodes in proportion to their cost: the many small products near the
+     * leaves get one thread each, while the few large ones near the root, which would
+     * otherwise leave most of the pool idle, split their product across several.
+     */
+    private static int planParallelism(MatrixNode root) {
+        List<List<MatrixNode>> byHeight = new ArrayList<>();
+        int height = estimateCosts(root, byHeight);
+        for (List<MatrixNode> nodes : byHeight) {
+            double total = 0;
+            for (MatrixNode node : nodes) {
+                total += node.cost;
+            }
+            for (MatrixNode node : nodes) {
+                long share = total > 0 ? Math.round(numberOfThreads * node.cost / total) : 1;
+                node.parallelism = (int) Math.max(1, Math.min(numberOfThreads, share));
+            }
+        }
+        return height;
+    }
+
+    // Returns the node's height; also labels it with its Sethi-Ullman need
+    private static int estimateCosts(MatrixNode node, List<List<MatrixNode>> byHeight) {
+        int height;
+        if (node.left == null && node.right == null) {
+            // Squarings plus accumulating multiplies for value^exponent
+            int steps = 31 - Integer.numberOfLeadingZeros(node.exponent) + Integer.bitCount(node.exponent) - 1;
+            node.cost = steps * productCost(node.value.getRows());
+            node.need = 1;
+            height = 0;
+        } else {
+            height = Math.max(estimateCosts(node.left, byHeight), estimateCosts(node.right, byHeight)) + 1;
+            MatrixNode first = node;
+            while (first.left != null) {
+                first = first.left;
+            }
+            node.cost = productCost(first.value.getRows());
+            int l = node.left.need;
+            int r = node.right.need;
+            node.need = l == r ? l + 1 : Math.max(l, r);
+        }
+        while (byHeight.size() <= height) {
+            byHeight.add(new ArrayList<>());
+        }
+        byHeight.get(height).add(node);
+        return height;
+    }
+
+    /**
+     * Builds the tree's task graph, submitting each product as soon as its children are.
+     * Children are visited in Sethi-Ullman order, the one needing more live intermediates
+     * first, so the other child's result is held for as short a time as possible. A child's
+     * result is dropped once its parent has consumed it, so finished levels become garbage
+     * instead of staying reachable from the tree.
+     *
+     * With permits, every intermediate product holds one until its parent consumes it. Only
+     * nodes that consume no intermediate acquire one, on this thread before submitting;
+     * a node consuming two returns one when it finishes, a node consuming one takes over
+     * its child's. The caller blocks when the bound is reached, and in this order the
+     * products already submitted can always finish if there are more permits than levels.
+     *
+     * Every node looks its subchain up in the product cache and stores its product there.
+     * Intermediates stay reachable from the cache after their parent consumed them, so they
+     * are stored within the cache's intermediate share, which bounds what they add to the
+     * heap on top of the permits.
+     */
+    private static CompletableFuture<int[][]> processNode(MatrixNode node, ReductionTrace trace,
+                                                          CancellationToken token, Semaphore permits,
+                                                          Executor tasks) throws InterruptedException {
         if (node.result != null) {
             return node.result;
         }
 
-        if (node.left == null && node.right == null) {
+        boolean leaf = node.left == null && node.right == null;
+        if (leaf && node.exponent == 1) {
             node.result = CompletableFuture.completedFuture(node.value.getMatrixData());
             return node.result;
         }
 
-        // Process children first
-        Future<int[][]> leftFuture = processNode(node.left);
-        Future<int[][]> rightFuture = processNode(node.right);
+        // Reuse the product of an identical subchain if we have already computed it
+        if (node.key != null) {
+            int[][] cached = cache.get(node.key);
+            if (cached != null) {
+                node.result = CompletableFuture.completedFuture(cached);
+                return node.result;
+            }
+        }
+
+        if (leaf) {
+            acquire(permits, token);
+            node.result = submitPower(node, trace, token, tasks);
+            return node.result;
+        }
+
+        // Process children first, the more demanding one first
+        MatrixNode first = node.right.need > node.left.need ? node.right : node.left;
+        MatrixNode second = first == node.left ? node.right : node.left;
+        processNode(first, trace, token, permits, tasks);
+        processNode(second, trace, token, permits, tasks);
 
-        // Submit multiplication task
-        node.result = executor.submit(() -> {
-            int[][] leftMatrix = leftFuture.get();
-            int[][] rightMatrix = rightFuture.get();
-            return multiplyMatrices(leftMatrix, rightMatrix);
+        // Children that were computed here (not plain leaves or cache hits) hold a permit each
+        int consumed = (node.left.span != null ? 1 : 0) + (node.right.span != null ? 1 : 0);
+        if (consumed == 0) {
+            acquire(permits, token);
+        }
+
+        // Multiply once both children are done
+        ReductionTrace.Span span = trace.submit(node.label(), node.level, node.left.span, node.right.span);
+        node.span = span;
+        int parallelism = node.parallelism;
+        MatrixNode left = node.left;
+        MatrixNode right = node.right;
+        node.result = whenBoth(left.result, right.result, span, token, tasks, (a, b) -> {
+            int[][] product = multiplyMatrices(a, b, token, parallelism, tasks);
+            store(node.key, node.root, product);
+            return product;
+        });
+        node.result.whenComplete((product, failure) -> {
+            left.result = null;
+            right.result = null;
+            if (consumed == 2 && permits != null) {
+                permits.release();
+            }
         });
 
         return node.result;
     }
 
-    // Main method for parallel matrix multiplication
+    // Waits for a permit, giving up if the token is cancelled meanwhile
+    private static void acquire(Semaphore permits, CancellationToken token) throws InterruptedException {
+        if (permits == null) return;
+        while (!permits.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+            token.throwIfCancelled();
+        }
+    }
+
+    // Runs op through tasks once both operands are available. Nothing waits on a thread for
+    // its inputs, so every pool thread is free to compute (or to help split products).
+    private static CompletableFuture<int[][]> whenBoth(CompletableFuture<int[][]> left,
+                                                       CompletableFuture<int[][]> right,
+                                                       ReductionTrace.Span span, CancellationToken token,
+                                                       Executor tasks, BinaryOperator<int[][]> op) {
+        return left.thenCombine(right, (a, b) -> {
+            span.enqueued();
+            return new int[][][]{a, b};
+        }).thenApplyAsync(operands -> {
+            token.throwIfCancelled();
+            span.start();
+            span.inputsReady();
+            int[][] product = op.apply(operands[0], operands[1]);
+            span.finish();
+            return product;
+        }, tasks);
+    }
+
+    // Main method for parallel matrix multiplication.
+    // The returned array may be shared with the product cache and must not be modified.
     public static int[][] resultMatrix(matrix[] matrices) throws ExecutionException, InterruptedException {
+        return resultMatrix(matrices, CancellationToken.NONE);
+    }
+
+    /**
+     * Like {@link #resultMatrix(matrix[])}, but stops early once the token is cancelled:
+     * queued tasks exit without computing and running Strassen recursions unwind at their
+     * next level, so the pool is free for other requests.
+     *
+     * @throws CancellationException if the token was cancelled before the product was done
+     */
+    public static int[][] resultMatrix(matrix[] matrices, CancellationToken token)
+            throws ExecutionException, InterruptedException {
+        return resultMatrix(matrices, token, executor);
+    }
+
+    /**
+     * Like {@link #resultMatrix(matrix[], CancellationToken)}, with every node task handed
+     * to tasks instead of straight to the pool: a FairScheduler job, say, or a direct
+     * executor to run the whole reduction on the calling thread.
+     */
+    public static int[][] resultMatrix(matrix[] matrices, CancellationToken token, Executor tasks)
+            throws ExecutionException, InterruptedException {
+        return resultMatrix(matrices, token, tasks, true);
+    }
+
+    /**
+     * Like {@link #resultMatrix(matrix[], CancellationToken, Executor)}; without useCache
+     * this reduction neither reads nor fills the product cache, whatever other reductions
+     * running at the same time do.
+     */
+    public static int[][] resultMatrix(matrix[] matrices, CancellationToken token, Executor tasks, boolean useCache)
+            throws ExecutionException, InterruptedException {
+        token.throwIfCancelled();
         if (matrices.length == 1) {
             return matrices[0].getMatrixData();
         }
 
         try {
             // Build binary tree
-            MatrixNode root = buildTree(matrices, 0, matrices.length - 1, 0);
+            MatrixNode root = buildTree(matrices, useCache);
+            root.root = true;
+            int depth = planParallelism(root);
+            int bound = MAX_INTERMEDIATES > 0 ? MAX_INTERMEDIATES : 2 * numberOfThreads;
+            Semaphore permits = new Semaphore(Math.max(bound, depth + 1));
 
             // Process tree and get final result
-            Future<int[][]> finalResult = processNode(root);
-            return finalResult.get();
+            ReductionTrace trace = new ReductionTrace();
+            lastTrace.set(trace);
+            Future<int[][]> finalResult = processNode(root, trace, token, permits, tasks);
+            int[][] result = await(finalResult);
+            trace.complete(root.span);
+            return result;
+        } finally {
+            if (matrices.length <= 2 && !sharedPool) {
+                shutdown();
+            }
+        }
+    }
+
+    // Waits for a result, rethrowing a cancellation however many dependent tasks wrapped it
+    static <T> T await(Future<T> future) throws ExecutionException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof CancellationException) {
+                    throw (CancellationException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Multiplies two square matrices of one size with every pool thread available to the
+     * product, or on the calling thread when no pool is active.
+     */
+    public static int[][] multiply(int[][] a, int[][] b, CancellationToken token)
+            throws ExecutionException, InterruptedException {
+        return multiply(a, b, token, executor);
+    }
+
+    // Like multiply(a, b, token), with the product's tasks handed to tasks
+    public static int[][] multiply(int[][] a, int[][] b, CancellationToken token, Executor tasks)
+            throws ExecutionException, InterruptedException {
+        return await(multiplyAsync(a, b, token, numberOfThreads, tasks));
+    }
+
+    // Starts a * b on the pool, letting it use up to parallelism threads
+    public static CompletableFuture<int[][]> multiplyAsync(int[][] a, int[][] b, CancellationToken token,
+                                                           int parallelism) {
+        return multiplyAsync(a, b, token, parallelism, executor);
+    }
+
+    // Starts a * b through tasks (a FairScheduler job, say), Strassen's subproducts included
+    public static CompletableFuture<int[][]> multiplyAsync(int[][] a, int[][] b, CancellationToken token,
+                                                           int parallelism, Executor tasks) {
+        if (!isPoolActive()) {
+            try {
+                token.throwIfCancelled();
+                return CompletableFuture.completedFuture(multiplyMatrices(a, b, token));
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            token.throwIfCancelled();
+            return multiplyMatrices(a, b, token, parallelism, tasks);
+        }, tasks);
+    }
+
+    /**
+     * Off-heap variant of resultMatrix: operands and intermediate products live in
+     * OffHeapArena.SHARED, and each intermediate goes back to the arena as soon as its
+     * parent has consumed it. Needs square matrices of one size. Repeats are not collapsed
+     * into powers and the product cache is not used.
+     */
+    public static int[][] resultMatrixOffHeap(matrix[] matrices, CancellationToken token)
+            throws ExecutionException, InterruptedException {
+        return resultMatrixOffHeap(matrices, token, executor);
+    }
+
+    public static int[][] resultMatrixOffHeap(matrix[] matrices, CancellationToken token, Executor tasks)
+            throws ExecutionException, InterruptedException {
+        token.throwIfCancelled();
+        lastTrace.remove();
+        OffHeapArena arena = OffHeapArena.SHARED;
+        OffHeapMatrix[] leaves = new OffHeapMatrix[matrices.length];
+        try {
+            for (int i = 0; i < matrices.length; i++) {
+                leaves[i] = matrices[i].toOffHeap(arena);
+            }
+        } catch (RuntimeException | Error e) {
+            for (OffHeapMatrix leaf : leaves) {
+                if (leaf != null) leaf.release();
+            }
+            throw e;
+        }
+        List<CompletableFuture<OffHeapMatrix>> products = new ArrayList<>();
+        CompletableFuture<OffHeapMatrix> root = reduceOffHeap(leaves, 0, leaves.length - 1, token, tasks, products);
+        try {
+            OffHeapMatrix product = await(root);
+            try {
+                return product.toArray();
+            } finally {
+                if (leaves.length > 1) {
+                    product.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Nobody will take the product if it still completes
+            if (leaves.length > 1) {
+                root.thenAccept(OffHeapMatrix::release);
+            }
+            throw e;
         } finally {
-            if (matrices.length <= 2) {
+            // Once no task can still be reading them: at once after a success, and after a
+            // failure when the abandoned tasks have settled
+            CompletableFuture.allOf(products.toArray(new CompletableFuture<?>[0])).whenComplete((v, failure) -> {
+                for (OffHeapMatrix leaf : leaves) {
+                    leaf.release();
+                }
+            });
+            if (matrices.length <= 2 && !sharedPool) {
                 shutdown();
             }
         }
     }
 
+    // Adds every product it submits to products
+    private static CompletableFuture<OffHeapMatrix> reduceOffHeap(OffHeapMatrix[] leaves, int start, int end,
+                                                                  CancellationToken token, Executor tasks,
+                                                                  List<CompletableFuture<OffHeapMatrix>> products) {
+        if (start == end) {
+            return CompletableFuture.completedFuture(leaves[start]);
+        }
+        int mid = (start + end) / 2;
+        CompletableFuture<OffHeapMatrix> leftFuture = reduceOffHeap(leaves, start, mid, token, tasks, products);
+        CompletableFuture<OffHeapMatrix> rightFuture = reduceOffHeap(leaves, mid + 1, end, token, tasks, products);
+        boolean ownsLeft = mid > start;       // Intermediates belong to the task that consumes them
+        boolean ownsRight = end > mid + 1;
+        AtomicBoolean consumed = new AtomicBoolean();
+        CompletableFuture<OffHeapMatrix> product = leftFuture.thenCombineAsync(rightFuture, (left, right) -> {
+            consumed.set(true);
+            try {
+                token.throwIfCancelled();
+                return OffHeapKernels.multiply(left, right, token);
+            } finally {
+                if (ownsLeft) left.release();
+                if (ownsRight) right.release();
+            }
+        }, tasks);
+        // A product that never ran (its sibling failed, or its task was refused) still owns
+        // whichever child intermediate did complete
+        CompletableFuture.allOf(leftFuture, rightFuture, product).whenComplete((v, failure) -> {
+            if (!consumed.get()) {
+                if (ownsLeft) releaseIfDone(leftFuture);
+                if (ownsRight) releaseIfDone(rightFuture);
+            }
+        });
+        products.add(product);
+        return product;
+    }
+
+    private static void releaseIfDone(CompletableFuture<OffHeapMatrix> future) {
+        if (!future.isCompletedExceptionally()) {
+            future.join().release();
+        }
+    }
+
+    public static BitMatrix booleanResultMatrix(BitMatrix[] chain, CancellationToken token)
+            throws ExecutionException, InterruptedException {
+        return booleanResultMatrix(chain, token, isPoolActive() ? executor : Runnable::run);
+    }
+
+    /**
+     * Boolean-semiring product of a chain of bit-packed 0/1 matrices, reduced over the
+     * same balanced tree as resultMatrix with one task per product, each handed to tasks
+     * once both its operands are done.
+     *
+     * This is a plainer reduction than resultMatrix's, which works on int[][] throughout:
+     * there is no cost-based thread plan (a large product splits its rows over tasks by
+     * itself), no bound on intermediates beyond the admission estimate (which reserves
+     * for all of them), no cache and no collapsing of repeated matrices into powers.
+     */
+    public static BitMatrix booleanResultMatrix(BitMatrix[] chain, CancellationToken token, Executor tasks)
+            throws ExecutionException, InterruptedException {
+        if (chain.length == 0) {
+            throw new IllegalArgumentException("Empty chain");
+        }
+        token.throwIfCancelled();
+        return await(reduceBits(chain, 0, chain.length - 1, token, tasks));
+    }
+
+    private static CompletableFuture<BitMatrix> reduceBits(BitMatrix[] chain, int start, int end,
+                                                           CancellationToken token, Executor tasks) {
+        if (start == end) {
+            return CompletableFuture.completedFuture(chain[start]);
+        }
+        int mid = (start + end) / 2;
+        return reduceBits(chain, start, mid, token, tasks).thenCombineAsync(
+                reduceBits(chain, mid + 1, end, token, tasks), (left, right) -> {
+                    token.throwIfCancelled();
+                    return left.multiply(right, token, tasks);
+                }, tasks);
+    }
+
     // Single-threaded version for baseline comparison
     public static int[][] resultMatrixSingleThread(matrix[] matrices) {
         if (matrices.length == 1) {
@@ -104,14 +567,207 @@ public class MatrixFileIO {
         }
 
         // Build binary tree without parallelization
-        MatrixNode root = buildTree(matrices, 0, matrices.length - 1, 0);
+        MatrixNode root = buildTree(matrices, false);
         return processNodeSequential(root);
     }
 
+    /**
+     * Multiplies many small, independent chains of square matrices together. Each chain is
+     * reduced a tree level at a time, every product of a level one small task, so a batch
+     * costs a few rounds of small tasks instead of a tree of futures per chain. Adjacent
+     * operands are paired in order, so each chain's product is the same as resultMatrix's.
+     *
+     * Chains do not wait for one another: a chain whose client's tasks are throttled, or
+     * whose product fails, delays or fails only its own result.
+     *
+     * @param chains chains whose matrices are all square and of one size per chain
+     * @param tokens one per chain; a cancelled chain stops early and its result is null
+     * @param tasks  one per chain, running that chain's products (each chain's FairScheduler
+     *               job, say, so every client's share of the batch counts against it)
+     * @return the products, aligned with chains
+     */
+    public static List<CompletableFuture<int[][]>> batchResultMatrix(matrix[][] chains, CancellationToken[] tokens,
+                                                                    Executor[] tasks) {
+        List<CompletableFuture<int[][]>> results = new ArrayList<>(chains.length);
+        for (int c = 0; c < chains.length; c++) {
+            try {
+                int[][][] operands = new int[chains[c].length][][];
+                for (int i = 0; i < operands.length; i++) {
+                    operands[i] = chains[c][i].getMatrixData();
+                }
+                results.add(reduceLevels(operands, tokens[c], tasks[c]));
+            } catch (RuntimeException e) {
+                results.add(CompletableFuture.failedFuture(e));
+            }
+        }
+        return results;
+    }
+
+    // One level's products as tasks; the next level starts once they are all done
+    private static CompletableFuture<int[][]> reduceLevels(int[][][] operands, CancellationToken token,
+                                                         Executor tasks) {
+        if (token.isCancelled()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (operands.length == 1) {
+            return CompletableFuture.completedFuture(operands[0]);
+        }
+        int half = operands.length / 2;
+        int[][][] next = new int[(operands.length + 1) / 2][][];
+        CompletableFuture<?>[] level = new CompletableFuture<?>[half];
+        for (int i = 0; i < half; i++) {
+            int pair = i;
+            level[i] = CompletableFuture.runAsync(() -> {
+                if (!token.isCancelled()) {
+                    next[pair] = standardMultiply(operands[2 * pair], operands[2 * pair + 1]);
+                }
+            }, tasks);
+        }
+        // An odd last operand carries over
+        if (operands.length % 2 != 0) {
+            next[half] = operands[operands.length - 1];
+        }
+        return CompletableFuture.allOf(level).thenCompose(done -> reduceLevels(next, token, tasks));
+    }
+
+    /**
+     * Applies the chain to each vector, right to left: A1(A2(...(Ak v))). Only vectors are
+     * ever formed, so this costs O(k n^2) per vector against O(k n^2.8) for the product.
+     * Each vector is one task handed to tasks, and its matrix-vector products stay on that
+     * task's thread, so the job occupies no more threads than tasks gives it.
+     */
+    public static int[][] chainTimesVectors(matrix[] chain, int[][] vectors, CancellationToken token,
+                                            Executor tasks) throws ExecutionException, InterruptedException {
+        int[][] results = new int[vectors.length][];
+        List<CompletableFuture<?>> running = new ArrayList<>(vectors.length);
+        for (int i = 0; i < vectors.length; i++) {
+            int v = i;
+            running.add(CompletableFuture.runAsync(() -> results[v] = chainTimes(chain, vectors[v], token, false),
+                    tasks));
+        }
+        await(CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])));
+        return results;
+    }
+
+    // Each matrix-vector product splits its rows over the common pool when the matrix is large
+    public static int[] chainTimes(matrix[] chain, int[] v, CancellationToken token) {
+        return chainTimes(chain, v, token, true);
+    }
+
+    static int[] chainTimes(matrix[] chain, int[] v, CancellationToken token, boolean splitRows) {
+        int[] x = v;
+        for (int i = chain.length - 1; i >= 0; i--) {
+            token.throwIfCancelled();
+            x = splitRows ? chain[i].multiply(x) : chain[i].multiply(x, false);
+        }
+        return x;
+    }
+
+    /**
+     * Computes a^k by repeated squaring, using O(log k) multiplications instead of k - 1.
+     * Runs on the thread pool when one is active, otherwise on the calling thread.
+     *
+     * @param a a square matrix
+     * @param k the exponent, at least 1
+     * @return a^k
+     */
+    public static int[][] matrixPower(matrix a, int k) throws ExecutionException, InterruptedException {
+        if (a.getRows() != a.getCols()) {
+            throw new IllegalArgumentException("Matrix power requires a square matrix");
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("Exponent must be at least 1: " + k);
+        }
+        if (executor == null || executor.isShutdown()) {
+            return powerSequential(a.getMatrixData(), k);
+        }
+
+        MatrixNode node = new MatrixNode(a, 0);
+        node.exponent = k;
+        node.last = k - 1;
+        ReductionTrace trace = new ReductionTrace();
+        lastTrace.set(trace);
+        int[][] result = submitPower(node, trace, CancellationToken.NONE, executor).get();
+        trace.complete(node.span);
+        return result;
+    }
+
+    // Submits the squaring steps for a leaf standing for value^exponent. Within each step the
+    // squaring and the accumulating multiply are independent, so they can run on different threads.
+    private static CompletableFuture<int[][]> submitPower(MatrixNode node, ReductionTrace trace,
+                                                          CancellationToken token, Executor tasks) {
+        String label = node.label();
+        int parallelism = node.parallelism;
+        CompletableFuture<int[][]> square = CompletableFuture.completedFuture(node.value.getMatrixData());
+        ReductionTrace.Span squareSpan = null;
+        CompletableFuture<int[][]> result = null;
+        ReductionTrace.Span resultSpan = null;
+        int k = node.exponent;
+        int step = 1;
+        while (true) {
+            if ((k & 1) != 0) {
+                if (result == null) {
+                    result = square;
+                    resultSpan = squareSpan;
+                } else {
+                    ReductionTrace.Span span = trace.submit(label + " accumulate^" + step, node.level,
+                            resultSpan, squareSpan);
+                    result = whenBoth(result, square, span, token, tasks,
+                            (a, b) -> multiplyMatrices(a, b, token, parallelism, tasks));
+                    resultSpan = span;
+                }
+            }
+            k >>>= 1;
+            if (k == 0) break;
+            step <<= 1;
+            ReductionTrace.Span span = trace.submit(label + " square^" + step, node.level, squareSpan);
+            square = whenBoth(square, square, span, token, tasks,
+                    (a, b) -> multiplyMatrices(a, a, token, parallelism, tasks));
+            squareSpan = span;
+        }
+        node.span = resultSpan;
+
+        if (node.key == null) {
+            return result;
+        }
+        MatrixCache.Key key = node.key;
+        boolean root = node.root;
+        return result.thenApply(product -> {
+            store(key, root, product);
+            return product;
+        });
+    }
+
+    private static void store(MatrixCache.Key key, boolean root, int[][] product) {
+        if (key == null) {
+            return;
+        }
+        if (root) {
+            cache.put(key, product);
+        } else {
+            cache.putIntermediate(key, product);
+        }
+    }
+
+    private static int[][] powerSequential(int[][] base, int exponent) {
+        int[][] result = null;
+        int[][] square = base;
+        int k = exponent;
+        while (true) {
+            if ((k & 1) != 0) {
+                result = result == null ? square : standardMultiply(result, square);
+            }
+            k >>>= 1;
+            if (k == 0) break;
+            square = standardMultiply(square, square);
+        }
+        return result;
+    }
+
     // Sequential processing for baseline comparison
     private static int[][] processNodeSequential(MatrixNode node) {
         if (node.left == null && node.right == null) {
-            return node.value.getMatrixData();
+            return powerSequential(node.value.getMatrixData(), node.exponent);
         }
 
         int[][] leftResult = processNodeSequential(node.left);
@@ -120,14 +776,31 @@ public class MatrixFileIO {
         return standardMultiply(leftResult, rightResult);
     }
 
-    private static int[][] multiplyMatrices(int[][] a, int[][] b) throws ExecutionException, InterruptedException {
-        if (a.length <= SEQUENTIAL_THRESHOLD) {
+    private static int[][] multiplyMatrices(int[][] a, int[][] b, CancellationToken token) {
+        return multiplyMatrices(a, b, token, 1, null);
+    }
+
+    // parallelism is how many threads this product may occupy, its subproducts forked through tasks
+    // Odd sizes use the standard kernel rather than dropping Strassen's last row and column
+    private static int[][] multiplyMatrices(int[][] a, int[][] b, CancellationToken token, int parallelism,
+                                            Executor tasks) {
+        if (a.length <= SEQUENTIAL_THRESHOLD || (a.length & 1) != 0) {
             return standardMultiply(a, b);
         }
-        return strassenMultiply(a, b);
+        return strassenMultiply(a, b, token, parallelism, tasks);
     }
 
-    private static int[][] strassenMultiply(int[][] matrix1, int[][] matrix2) throws ExecutionException, InterruptedException {
+    private static int[][] strassenMultiply(int[][] matrix1, int[][] matrix2) {
+        return strassenMultiply(matrix1, matrix2, CancellationToken.NONE, 1, null);
+    }
+
+    // Checks the token once per recursion level, so a cancelled product unwinds after at
+    // most one block of size SEQUENTIAL_THRESHOLD. With parallelism above 1 six of the seven
+    // products are forked through tasks, each with a seventh of the threads to recurse with,
+    // so a scheduler counts them against the job they belong to.
+    private static int[][] strassenMultiply(int[][] matrix1, int[][] matrix2, CancellationToken token,
+                                            int parallelism, Executor tasks) {
+        token.throwIfCancelled();
         int n = matrix1.length;
         int size = n / 2;
 
@@ -151,32 +824,63 @@ public class MatrixFileIO {
         split(matrix2, b21, size, 0);
         split(matrix2, b22, size, size);
 
-        // Compute the seven products
-        int[][] p1 = multiplyMatrices(
-                addMatrices(a11, a22), addMatrices(b11, b22));
-        int[][] p2 = multiplyMatrices(
-                addMatrices(a21, a22), b11);
-        int[][] p3 = multiplyMatrices(
-                a11, subtractMatrices(b12, b22));
-        int[][] p4 = multiplyMatrices(
-                a22, subtractMatrices(b21, b11));
-        int[][] p5 = multiplyMatrices(
-                addMatrices(a11, a12), b22);
-        int[][] p6 = multiplyMatrices(
-                subtractMatrices(a21, a11), addMatrices(b11, b12));
-        int[][] p7 = multiplyMatrices(
-                subtractMatrices(a12, a22), addMatrices(b21, b22));
+        // The seven products; operands are built inside each so forked ones build their own
+        int share = Math.max(1, parallelism / 7);
+        List<Supplier<int[][]>> products = List.of(
+                () -> multiplyMatrices(addMatrices(a11, a22), addMatrices(b11, b22), token, share, tasks),
+                () -> multiplyMatrices(addMatrices(a21, a22), b11, token, share, tasks),
+                () -> multiplyMatrices(a11, subtractMatrices(b12, b22), token, share, tasks),
+                () -> multiplyMatrices(a22, subtractMatrices(b21, b11), token, share, tasks),
+                () -> multiplyMatrices(addMatrices(a11, a12), b22, token, share, tasks),
+                () -> multiplyMatrices(subtractMatrices(a21, a11), addMatrices(b11, b12), token, share, tasks),
+                () -> multiplyMatrices(subtractMatrices(a12, a22), addMatrices(b21, b22), token, share, tasks));
+        int[][][] p = new int[7][][];
+        if (parallelism > 1 && tasks != null) {
+            // The forked products may sit queued behind other jobs. Any that has not started
+            // by the time this thread gets to it is run here instead, so a task never waits
+            // for one that is still queued and slots cannot all be held by waiting tasks.
+            List<FutureTask<int[][]>> forked = new ArrayList<>();
+            for (int i = 1; i < 7; i++) {
+                FutureTask<int[][]> task = new FutureTask<>(products.get(i)::get);
+                forked.add(task);
+                tasks.execute(task);
+            }
+            p[0] = products.get(0).get();
+            for (int i = 1; i < 7; i++) {
+                FutureTask<int[][]> task = forked.get(i - 1);
+                task.run();  // Does nothing if it already ran or is running elsewhere
+                p[i] = join(task);
+            }
+        } else {
+            for (int i = 0; i < 7; i++) {
+                p[i] = products.get(i).get();
+            }
+        }
 
         // Calculate quadrants of the result
-        int[][] c11 = addMatrices(subtractMatrices(addMatrices(p1, p4), p5), p7);
-        int[][] c12 = addMatrices(p3, p5);
-        int[][] c21 = addMatrices(p2, p4);
-        int[][] c22 = addMatrices(subtractMatrices(addMatrices(p1, p3), p2), p6);
+        int[][] c11 = addMatrices(subtractMatrices(addMatrices(p[0], p[3]), p[4]), p[6]);
+        int[][] c12 = addMatrices(p[2], p[4]);
+        int[][] c21 = addMatrices(p[1], p[3]);
+        int[][] c22 = addMatrices(subtractMatrices(addMatrices(p[0], p[2]), p[1]), p[5]);
 
         // Combine quadrants into result
         return combine(c11, c12, c21, c22);
     }
 
+    // Result of a forked subproduct, with its own exception rethrown unwrapped
+    private static int[][] join(FutureTask<int[][]> task) {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted");
+        }
+    }
+
     private static int[][] standardMultiply(int[][] matrix1, int[][] matrix2) {
         int n = matrix1.length;
         int[][] result = new int[n][n];
@@ -231,6 +935,15 @@ public class MatrixFileIO {
         return result;
     }
 
+    public static Executor getExecutor() {
+        return executor;
+    }
+
+    public static boolean isPoolActive() {
+        ExecutorService pool = executor;
+        return pool != null && !pool.isShutdown();
+    }
+
     public static void shutdown() {
         if (executor != null && !executor.isShutdown()) {
             executor.shutdown();
@@ -244,6 +957,37 @@ public class MatrixFileIO {
         }
     }
 
+    // Disable to measure uncached performance (e.g. baseline runs)
+    public static void setCacheEnabled(boolean enabled) {
+        cacheEnabled = enabled;
+    }
+
+    public static boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public static ReductionTrace getLastTrace() {
+        return lastTrace.get();
+    }
+
+    public static MatrixCache getCache() {
+        return cache;
+    }
+
+    // Threads currently running tasks on the pool
+    public static int getActiveTaskCount() {
+        ExecutorService pool = executor;
+        return pool instanceof ForkJoinPool ? ((ForkJoinPool) pool).getActiveThreadCount() : 0;
+    }
+
+    // Tasks submitted or forked but not yet picked up by a thread
+    public static int getQueuedTaskCount() {
+        ExecutorService pool = executor;
+        if (!(pool instanceof ForkJoinPool)) return 0;
+        ForkJoinPool fj = (ForkJoinPool) pool;
+        return (int) Math.min(Integer.MAX_VALUE, fj.getQueuedSubmissionCount() + fj.getQueuedTaskCount());
+    }
+
     public static int getCurrentThreadCount() {
         return numberOfThreads;
     }
@@ -1,9 +1,28 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
 
 /**
  * A utility class for generating n x n matrices filled with random integers.
+ *
+ * The seeded methods fill rows in parallel. Each row draws from its own SplittableRandom
+ * stream derived from (seed, matrix index, row), so the values depend only on the seed,
+ * never on the number of threads or the output form: an int[][], an OffHeapMatrix, a
+ * channel in OffHeapMatrix's format and a memory-mapped file all hold the same numbers.
  */
 public class MatrixGenerator {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+    private static final int STREAM_BLOCK_ROWS = 64;
 
     /**
      * Generates an n x n matrix filled with random integers.
@@ -45,8 +64,126 @@ public class MatrixGenerator {
         return matrix;
     }
 
-    // Optional main method for testing
-    public static void main(String[] args) {
+    /**
+     * Generates a reproducible n x n matrix with values in [minValue, maxValue).
+     */
+    public static int[][] generateMatrix(int n, int minValue, int maxValue, long seed) {
+        int[][] matrix = new int[n][];
+        IntStream.range(0, n).parallel().forEach(i -> matrix[i] = fillRow(new int[n], seed, i, minValue, maxValue));
+        return matrix;
+    }
+
+    /**
+     * Generates a reproducible chain of count n x n matrices, rows of all matrices in
+     * parallel. Matrix k of the chain equals generateMatrix(n, min, max, seedOf(seed, k)).
+     */
+    public static matrix[] generateChain(int n, int count, int minValue, int maxValue, long seed) {
+        int[][][] data = new int[count][n][];
+        IntStream.range(0, count * n).parallel().forEach(r -> {
+            int k = r / n;
+            int i = r % n;
+            data[k][i] = fillRow(new int[n], seedOf(seed, k), i, minValue, maxValue);
+        });
+        matrix[] chain = new matrix[count];
+        for (int k = 0; k < count; k++) {
+            chain[k] = matrix.adopt(data[k]);
+        }
+        return chain;
+    }
+
+    // Generates straight into off-heap memory
+    public static OffHeapMatrix generateOffHeap(OffHeapArena arena, int n, int minValue, int maxValue, long seed) {
+        OffHeapMatrix m = arena.allocate(n, n);
+        IntStream.range(0, n).parallel().forEach(i -> {
+            int[] row = fillRow(new int[n], seed, i, minValue, maxValue);
+            m.data.put(i * n, row, 0, n);
+        });
+        return m;
+    }
+
+    /**
+     * Streams a matrix to a channel in OffHeapMatrix's format, a block of rows at a time,
+     * so memory use stays at one block whatever the size.
+     */
+    public static void generateTo(WritableByteChannel channel, int n, int minValue, int maxValue, long seed)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(n).putInt(n).flip();
+        writeFully(channel, header);
+        int blockRows = Math.max(1, Math.min(n, STREAM_BLOCK_ROWS));
+        ByteBuffer block = ByteBuffer.allocateDirect(blockRows * n * 4).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer ints = block.asIntBuffer();
+        for (int first = 0; first < n; first += blockRows) {
+            int start = first;
+            int rows = Math.min(blockRows, n - first);
+            IntStream.range(0, rows).parallel().forEach(r ->
+                    ints.put(r * n, fillRow(new int[n], seed, start + r, minValue, maxValue), 0, n));
+            block.clear().limit(rows * n * 4);
+            writeFully(channel, block);
+        }
+    }
+
+    /**
+     * Writes a chain of count matrices to a file in OffHeapMatrix's format, filling a
+     * memory mapping of each matrix in parallel. Matrix k matches generateChain's.
+     */
+    public static void generateToFile(Path file, int n, int count, int minValue, int maxValue, long seed)
+            throws IOException {
+        long matrixBytes = 8 + 4L * n * n;
+        if (matrixBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Matrix of size " + n + " is too large to map");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int k = 0; k < count; k++) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, k * matrixBytes, matrixBytes);
+                mapped.order(ByteOrder.LITTLE_ENDIAN).putInt(0, n).putInt(4, n);
+                IntBuffer ints = mapped.position(8).slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                long matrixSeed = seedOf(seed, k);
+                IntStream.range(0, n).parallel().forEach(i ->
+                        ints.put(i * n, fillRow(new int[n], matrixSeed, i, minValue, maxValue), 0, n));
+                mapped.force();
+            }
+        }
+    }
+
+    // Seed of matrix k in a chain generated from seed
+    public static long seedOf(long seed, int k) {
+        return mix64(seed + (k + 1) * GOLDEN_GAMMA);
+    }
+
+    private static int[] fillRow(int[] row, long seed, int i, int minValue, int maxValue) {
+        SplittableRandom rand = new SplittableRandom(mix64(seed ^ mix64((i + 1) * GOLDEN_GAMMA)));
+        for (int j = 0; j < row.length; j++) {
+            row[j] = rand.nextInt(minValue, maxValue);
+        }
+        return row;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    // Optional main method for testing.
+    // With arguments: <file> <size> <count> [seed] writes a chain to a file
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3) {
+            int size = Integer.parseInt(args[1]);
+            int count = Integer.parseInt(args[2]);
+            long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+            long start = System.nanoTime();
+            generateToFile(Paths.get(args[0]), size, count, 1, 10, seed);
+            System.out.printf("Wrote %d matrices of %dx%d (seed %d) to %s in %.1f ms%n",
+                    count, size, size, seed, args[0], (System.nanoTime() - start) / 1e6);
+            return;
+        }
         int n = 5;
         int[][] matrix = generateMatrix(n);
 
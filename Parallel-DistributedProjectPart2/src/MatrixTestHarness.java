@@ -8,6 +8,8 @@ public class MatrixTestHarness {
     private static final int[] MATRIX_COUNTS = {2, 4, 8, 16, 32};
     private static final int WARMUP_ITERATIONS = 3;
     private static final int TEST_ITERATIONS = 5;
+    // Same inputs on every run, so results are comparable across runs and machines
+    private static final long SEED = Long.getLong("harness.seed", 42);
 
     public static class TestResult {
         public int matrixSize;
@@ -40,6 +42,8 @@ public class MatrixTestHarness {
 
     public static void main(String[] args) {
         List<TestResult> results = new ArrayList<>();
+        // Every iteration reuses the same inputs, so cached products would skew the timings
+        MatrixFileIO.setCacheEnabled(false);
 
         for (int size : MATRIX_SIZES) {
             for (int count : MATRIX_COUNTS) {
@@ -102,11 +106,7 @@ public class MatrixTestHarness {
 
     private static matrix[] generateMatrices(int size, int count) {
         try {
-            matrix[] matrices = new matrix[count];
-            for (int i = 0; i < count; i++) {
-                matrices[i] = new matrix(MatrixGenerator.generateMatrix(size, 1, 10));
-            }
-            return matrices;
+            return MatrixGenerator.generateChain(size, count, 1, 10, SEED);
         } catch (OutOfMemoryError e) {
             System.err.printf("Out of memory generating matrices (size=%d, count=%d)%n", size, count);
             return null;
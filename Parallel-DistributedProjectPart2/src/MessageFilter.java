@@ -0,0 +1,51 @@
+import java.io.ObjectInputFilter;
+
+/**
+ * Deserialization filter for one connection that bounds each message as a whole, not
+ * just each array in it: the arrays a message allocates, plus a small allowance per
+ * object, may total at most {@code maxBytes}. Call {@link #startMessage} before each
+ * readObject; a message over the limit fails with InvalidClassException before the
+ * array that would cross it is allocated.
+ *
+ * Other limits (array length, depth, classes) come from the wrapped filter.
+ */
+public final class MessageFilter implements ObjectInputFilter {
+    // Rough heap cost of an object beyond its arrays: header and a few fields
+    private static final long OBJECT_BYTES = 32;
+
+    private final ObjectInputFilter limits;
+    private final long maxBytes;
+    private long bytes;  // Read by the connection's reader thread only
+
+    public MessageFilter(ObjectInputFilter limits, long maxBytes) {
+        this.limits = limits;
+        this.maxBytes = maxBytes;
+    }
+
+    public void startMessage() {
+        bytes = 0;
+    }
+
+    @Override
+    public Status checkInput(FilterInfo info) {
+        Status status = limits.checkInput(info);
+        if (status == Status.REJECTED) {
+            return status;
+        }
+        Class<?> type = info.serialClass();
+        if (type != null && type.isArray() && info.arrayLength() >= 0) {
+            bytes += info.arrayLength() * elementBytes(type.getComponentType());
+        } else {
+            bytes += OBJECT_BYTES;
+        }
+        return bytes > maxBytes ? Status.REJECTED : status;
+    }
+
+    private static long elementBytes(Class<?> component) {
+        if (component == long.class || component == double.class) return 8;
+        if (component == int.class || component == float.class) return 4;
+        if (component == short.class || component == char.class) return 2;
+        if (component == byte.class || component == boolean.class) return 1;
+        return 8;  // A reference
+    }
+}
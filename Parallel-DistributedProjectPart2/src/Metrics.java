@@ -0,0 +1,247 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms for the server and
+ * router. Metrics are exposed as plain text on a loopback HTTP endpoint (GET /metrics)
+ * when -Dmetrics.port is set, and always as attributes of a JMX MBean
+ * ("matrix:type=Metrics,role=...").
+ *
+ * Histograms record nanoseconds unless their name says otherwise.
+ */
+public final class Metrics {
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static HttpServer httpServer;
+    private static boolean jmxRegistered;
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public static void gauge(String name, DoubleSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Renders every metric in a Prometheus-style text format, one sample per line.
+     */
+    public static String render() {
+        StringBuilder sb = new StringBuilder();
+        counters.forEach((name, c) -> sb.append(name).append(' ').append(c.get()).append('\n'));
+        gauges.forEach((name, g) -> sb.append(name).append(' ').append(format(g.getAsDouble())).append('\n'));
+        histograms.forEach((name, h) -> {
+            for (double q : QUANTILES) {
+                sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                        .append(h.getValueAtPercentile(q * 100)).append('\n');
+            }
+            sb.append(name).append("_max ").append(h.getMax()).append('\n');
+            sb.append(name).append("_sum ").append(h.getSum()).append('\n');
+            sb.append(name).append("_count ").append(h.getCount()).append('\n');
+        });
+        return sb.toString();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value)
+                ? String.valueOf((long) value) : String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    /**
+     * Registers the JMX bean and, if -Dmetrics.port is set, starts the HTTP endpoint.
+     */
+    public static void expose(String role) {
+        registerJmx(role);
+        String port = System.getProperty("metrics.port");
+        if (port != null) {
+            startHttpEndpoint(Integer.parseInt(port));
+        }
+    }
+
+    public static synchronized void startHttpEndpoint(int port) {
+        if (httpServer != null) return;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpServer.setExecutor(null);  // Scrapes are rare; the server's own thread is enough
+            httpServer.start();
+            Log.info("Metrics available at http://localhost:" + httpServer.getAddress().getPort() + "/metrics");
+        } catch (IOException e) {
+            Log.warn("Could not start metrics endpoint on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    public static synchronized void stopHttpEndpoint() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    public static synchronized void registerJmx(String role) {
+        if (jmxRegistered) return;
+        try {
+            ObjectName name = new ObjectName("matrix:type=Metrics,role=" + ObjectName.quote(role));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+            jmxRegistered = true;
+        } catch (JMException e) {
+            Log.warn("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // Counts bytes flowing through a socket stream
+    public static InputStream countingInput(InputStream in, Counter bytes) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytes.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if (n > 0) bytes.add(n);
+                return n;
+            }
+        };
+    }
+
+    public static OutputStream countingOutput(OutputStream out, Counter bytes) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes.increment();
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+                out.write(buf, off, len);
+                bytes.add(len);
+            }
+        };
+    }
+
+    /**
+     * Exposes the registry over JMX. Attributes are read live, so metrics registered after
+     * the bean show up as well; histograms appear as name_p50, name_p99, name_p999,
+     * name_max and name_count.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter c = counters.get(attribute);
+            if (c != null) return c.get();
+            DoubleSupplier g = gauges.get(attribute);
+            if (g != null) return g.getAsDouble();
+
+            int split = attribute.lastIndexOf('_');
+            if (split > 0) {
+                LatencyHistogram h = histograms.get(attribute.substring(0, split));
+                if (h != null) {
+                    switch (attribute.substring(split + 1)) {
+                        case "p50": return h.getValueAtPercentile(50);
+                        case "p99": return h.getValueAtPercentile(99);
+                        case "p999": return h.getValueAtPercentile(99.9);
+                        case "max": return h.getMax();
+                        case "count": return h.getCount();
+                        default: break;
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    list.add(new Attribute(a, getAttribute(a)));
+                } catch (AttributeNotFoundException ignored) {
+                    // Omitted from the result, as the JMX contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : counters.keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+            }
+            for (String name : gauges.keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "double", "gauge", true, false, false));
+            }
+            for (String name : histograms.keySet()) {
+                for (String suffix : new String[]{"p50", "p99", "p999", "max", "count"}) {
+                    attributes.add(new MBeanAttributeInfo(name + "_" + suffix, "long", "histogram " + suffix,
+                            true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Matrix server/router metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates and recycles the direct buffers behind OffHeapMatrix. Released buffers go
+ * to a free list per byte size and are handed out again, so once a reduction has warmed
+ * up it allocates no new memory; the free lists are capped at -Dmatrix.offheap.poolMb
+ * (default 512). Buffers beyond the cap are dropped and freed by the JVM's cleaner.
+ *
+ * JDK 17 has no final foreign memory API, so this stands in for a shared Arena of
+ * MemorySegments. Memory handed out by allocate() has undefined contents.
+ */
+public final class OffHeapArena implements AutoCloseable {
+    public static final OffHeapArena SHARED =
+            new OffHeapArena(Long.getLong("matrix.offheap.poolMb", 512) * 1024 * 1024);
+
+    private final long maxPooledBytes;
+    private final Map<Integer, Queue<ByteBuffer>> free = new ConcurrentHashMap<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reusedBytes = new AtomicLong();
+
+    public OffHeapArena(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    public OffHeapMatrix allocate(int rows, int cols) {
+        int bytes = Math.multiplyExact(Math.multiplyExact(rows, cols), 4);
+        ByteBuffer buffer = null;
+        Queue<ByteBuffer> list = free.get(bytes);
+        if (list != null) {
+            buffer = list.poll();
+        }
+        if (buffer != null) {
+            pooledBytes.addAndGet(-bytes);
+            reusedBytes.addAndGet(bytes);
+        } else {
+            buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            allocatedBytes.addAndGet(bytes);
+        }
+        liveBytes.addAndGet(bytes);
+        return new OffHeapMatrix(this, buffer, rows, cols);
+    }
+
+    public OffHeapMatrix copyOf(int[][] values) {
+        OffHeapMatrix m = allocate(values.length, values[0].length);
+        m.copyFrom(values);
+        return m;
+    }
+
+    void release(ByteBuffer buffer) {
+        int bytes = buffer.capacity();
+        liveBytes.addAndGet(-bytes);
+        if (pooledBytes.addAndGet(bytes) <= maxPooledBytes) {
+            free.computeIfAbsent(bytes, k -> new ConcurrentLinkedQueue<>()).add(buffer);
+        } else {
+            pooledBytes.addAndGet(-bytes);
+        }
+    }
+
+    // Drops the free lists; matrices still in use stay valid
+    @Override
+    public void close() {
+        free.clear();
+        pooledBytes.set(0);
+    }
+
+    public long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    // Fresh direct memory requested from the JVM since the arena was created
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getReusedBytes() {
+        return reusedBytes.get();
+    }
+}
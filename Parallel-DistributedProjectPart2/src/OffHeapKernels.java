@@ -0,0 +1,203 @@
+import java.nio.IntBuffer;
+
+/**
+ * Multiplication kernels for OffHeapMatrix, mirroring standardMultiply and
+ * strassenMultiply in MatrixFileIO. Strassen works on quadrant views instead of copying
+ * quadrants out, and takes its temporaries from the operands' arena and returns them
+ * after each level, so a product allocates no heap arrays proportional to its size.
+ */
+public final class OffHeapKernels {
+    private static final int SEQUENTIAL_THRESHOLD = 64;
+
+    // Per-thread scratch rows for the base case, which never exceeds SEQUENTIAL_THRESHOLD
+    private static final ThreadLocal<int[][]> SCRATCH = ThreadLocal.withInitial(() -> new int[][]{
+            new int[SEQUENTIAL_THRESHOLD * SEQUENTIAL_THRESHOLD], new int[SEQUENTIAL_THRESHOLD],
+            new int[SEQUENTIAL_THRESHOLD]});
+
+    private OffHeapKernels() {
+    }
+
+    // A square block of an off-heap matrix: n x n elements from offset with the given row stride
+    private static final class View {
+        final IntBuffer data;
+        final int offset;
+        final int stride;
+
+        View(IntBuffer data, int offset, int stride) {
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+        }
+
+        View(OffHeapMatrix m) {
+            this(m.data, 0, m.cols);
+        }
+
+        View quadrant(int row, int col, int half) {
+            return new View(data, offset + row * half * stride + col * half, stride);
+        }
+
+        int get(int i, int j) {
+            return data.get(offset + i * stride + j);
+        }
+
+        void set(int i, int j, int value) {
+            data.put(offset + i * stride + j, value);
+        }
+    }
+
+    public static OffHeapMatrix multiply(OffHeapMatrix a, OffHeapMatrix b) {
+        return multiply(a, b, CancellationToken.NONE);
+    }
+
+    /**
+     * Returns a new matrix from a's arena holding a * b. Both must be square and of the
+     * same size.
+     */
+    public static OffHeapMatrix multiply(OffHeapMatrix a, OffHeapMatrix b, CancellationToken token) {
+        int n = a.rows;
+        if (a.cols != n || b.rows != n || b.cols != n) {
+            throw new IllegalArgumentException("Off-heap kernels need square matrices of one size: "
+                    + a.rows + "x" + a.cols + " * " + b.rows + "x" + b.cols);
+        }
+        OffHeapArena arena = a.arena();
+        OffHeapMatrix c = arena.allocate(n, n);
+        try {
+            strassen(new View(a), new View(b), new View(c), n, arena, token);
+        } catch (RuntimeException e) {
+            c.release();
+            throw e;
+        }
+        return c;
+    }
+
+    private static void strassen(View a, View b, View c, int n, OffHeapArena arena, CancellationToken token) {
+        token.throwIfCancelled();
+        if (n <= SEQUENTIAL_THRESHOLD) {
+            standard(a, b, c, n);
+            return;
+        }
+        if ((n & 1) != 0) {
+            peel(a, b, c, n, arena, token);
+            return;
+        }
+        int h = n / 2;
+        View a11 = a.quadrant(0, 0, h), a12 = a.quadrant(0, 1, h), a21 = a.quadrant(1, 0, h), a22 = a.quadrant(1, 1, h);
+        View b11 = b.quadrant(0, 0, h), b12 = b.quadrant(0, 1, h), b21 = b.quadrant(1, 0, h), b22 = b.quadrant(1, 1, h);
+
+        OffHeapMatrix[] temps = new OffHeapMatrix[9];
+        try {
+            for (int i = 0; i < temps.length; i++) {
+                temps[i] = arena.allocate(h, h);
+            }
+            View t1 = new View(temps[0]), t2 = new View(temps[1]);
+            View[] p = new View[8];
+            for (int i = 1; i <= 7; i++) {
+                p[i] = new View(temps[i + 1]);
+            }
+
+            // The seven products
+            add(a11, a22, t1, h);
+            add(b11, b22, t2, h);
+            strassen(t1, t2, p[1], h, arena, token);
+            add(a21, a22, t1, h);
+            strassen(t1, b11, p[2], h, arena, token);
+            subtract(b12, b22, t2, h);
+            strassen(a11, t2, p[3], h, arena, token);
+            subtract(b21, b11, t2, h);
+            strassen(a22, t2, p[4], h, arena, token);
+            add(a11, a12, t1, h);
+            strassen(t1, b22, p[5], h, arena, token);
+            subtract(a21, a11, t1, h);
+            add(b11, b12, t2, h);
+            strassen(t1, t2, p[6], h, arena, token);
+            subtract(a12, a22, t1, h);
+            add(b21, b22, t2, h);
+            strassen(t1, t2, p[7], h, arena, token);
+
+            // Quadrants of the result, written straight into c
+            View c11 = c.quadrant(0, 0, h), c12 = c.quadrant(0, 1, h), c21 = c.quadrant(1, 0, h), c22 = c.quadrant(1, 1, h);
+            for (int i = 0; i < h; i++) {
+                for (int j = 0; j < h; j++) {
+                    int p1 = p[1].get(i, j), p2 = p[2].get(i, j), p3 = p[3].get(i, j), p4 = p[4].get(i, j);
+                    int p5 = p[5].get(i, j), p6 = p[6].get(i, j), p7 = p[7].get(i, j);
+                    c11.set(i, j, p1 + p4 - p5 + p7);
+                    c12.set(i, j, p3 + p5);
+                    c21.set(i, j, p2 + p4);
+                    c22.set(i, j, p1 - p2 + p3 + p6);
+                }
+            }
+        } finally {
+            for (OffHeapMatrix t : temps) {
+                if (t != null) t.release();
+            }
+        }
+    }
+
+    // An odd size: Strassen on the even leading block, then the last row and column, which
+    // take O(n^2) work. The block's own halves may be odd again and are peeled in turn.
+    private static void peel(View a, View b, View c, int n, OffHeapArena arena, CancellationToken token) {
+        int m = n - 1;
+        strassen(a, b, c, m, arena, token);
+        for (int i = 0; i < m; i++) {
+            int aim = a.get(i, m);
+            if (aim == 0) continue;
+            for (int j = 0; j < m; j++) {
+                c.set(i, j, c.get(i, j) + aim * b.get(m, j));
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            int sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += a.get(i, k) * b.get(k, m);
+            }
+            c.set(i, m, sum);
+        }
+        for (int j = 0; j < n; j++) {
+            int sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += a.get(m, k) * b.get(k, j);
+            }
+            c.set(m, j, sum);
+        }
+    }
+
+    // i-k-j order over heap scratch rows; b is copied once so the inner loop is contiguous
+    private static void standard(View a, View b, View c, int n) {
+        int[][] scratch = SCRATCH.get();
+        int[] bBlock = scratch[0];
+        int[] aRow = scratch[1];
+        int[] cRow = scratch[2];
+        for (int k = 0; k < n; k++) {
+            b.data.get(b.offset + k * b.stride, bBlock, k * n, n);
+        }
+        for (int i = 0; i < n; i++) {
+            a.data.get(a.offset + i * a.stride, aRow, 0, n);
+            java.util.Arrays.fill(cRow, 0, n, 0);
+            for (int k = 0; k < n; k++) {
+                int aik = aRow[k];
+                int base = k * n;
+                for (int j = 0; j < n; j++) {
+                    cRow[j] += aik * bBlock[base + j];
+                }
+            }
+            c.data.put(c.offset + i * c.stride, cRow, 0, n);
+        }
+    }
+
+    private static void add(View x, View y, View out, int n) {
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                out.set(i, j, x.get(i, j) + y.get(i, j));
+            }
+        }
+    }
+
+    private static void subtract(View x, View y, View out, int n) {
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                out.set(i, j, x.get(i, j) - y.get(i, j));
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A matrix stored outside the Java heap, row-major in a direct buffer in native byte
+ * order. Instances come from an OffHeapArena and go back to it with release(); the heap
+ * only holds this small handle, so large products and Strassen temporaries give the
+ * collector nothing to copy or scan.
+ *
+ * The channel format is rows and cols followed by the elements, all little-endian ints.
+ * On little-endian hardware writeTo and readFrom move the elements between the channel
+ * and off-heap memory without a heap copy.
+ */
+public final class OffHeapMatrix {
+    private static final ByteOrder WIRE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    final int rows;
+    final int cols;
+    final ByteBuffer buffer;
+    final IntBuffer data;
+    private final OffHeapArena arena;
+    private volatile boolean released;
+
+    OffHeapMatrix(OffHeapArena arena, ByteBuffer buffer, int rows, int cols) {
+        this.arena = arena;
+        this.buffer = buffer;
+        this.rows = rows;
+        this.cols = cols;
+        this.data = buffer.asIntBuffer();
+    }
+
+    // Copies an on-heap matrix into the shared arena
+    public static OffHeapMatrix of(int[][] values) {
+        OffHeapMatrix m = OffHeapArena.SHARED.allocate(values.length, values[0].length);
+        m.copyFrom(values);
+        return m;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public long byteSize() {
+        return 4L * rows * cols;
+    }
+
+    public int get(int row, int col) {
+        return data.get(row * cols + col);
+    }
+
+    public void set(int row, int col, int value) {
+        data.put(row * cols + col, value);
+    }
+
+    public void copyFrom(int[][] values) {
+        for (int i = 0; i < rows; i++) {
+            data.put(i * cols, values[i], 0, cols);
+        }
+    }
+
+    public int[][] toArray() {
+        int[][] values = new int[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            data.get(i * cols, values[i], 0, cols);
+        }
+        return values;
+    }
+
+    public OffHeapArena arena() {
+        return arena;
+    }
+
+    // Returns the memory to the arena; the matrix must not be used afterwards
+    public void release() {
+        if (released) {
+            throw new IllegalStateException("Off-heap matrix released twice");
+        }
+        released = true;
+        arena.release(buffer);
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).order(WIRE_ORDER).putInt(rows).putInt(cols).flip();
+        writeFully(channel, header);
+        if (buffer.order() == WIRE_ORDER) {
+            writeFully(channel, buffer.duplicate().clear().limit((int) byteSize()));
+            return;
+        }
+        // Big-endian hardware: swap through a small bounce buffer
+        ByteBuffer chunk = ByteBuffer.allocateDirect(64 * 1024).order(WIRE_ORDER);
+        IntBuffer ints = chunk.asIntBuffer();
+        for (int i = 0, n = rows * cols; i < n; ) {
+            int len = Math.min(ints.capacity(), n - i);
+            ints.clear();
+            ints.put(0, data, i, len);
+            chunk.clear().limit(len * 4);
+            writeFully(channel, chunk);
+            i += len;
+        }
+    }
+
+    public static OffHeapMatrix readFrom(ReadableByteChannel channel, OffHeapArena arena) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).order(WIRE_ORDER);
+        readFully(channel, header);
+        int rows = header.getInt(0);
+        int cols = header.getInt(4);
+        if (rows <= 0 || cols <= 0) {
+            throw new IOException("Bad off-heap matrix header: " + rows + "x" + cols);
+        }
+        OffHeapMatrix m = arena.allocate(rows, cols);
+        ByteBuffer body = m.buffer.duplicate().clear().limit((int) m.byteSize());
+        readFully(channel, body);
+        if (m.buffer.order() != WIRE_ORDER) {
+            IntBuffer wire = m.buffer.duplicate().order(WIRE_ORDER).asIntBuffer();
+            for (int i = 0, n = rows * cols; i < n; i++) {
+                m.data.put(i, wire.get(i));
+            }
+        }
+        return m;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes) < 0) {
+                throw new EOFException("Channel closed in the middle of a matrix");
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.Serializable;
+
+/**
+ * Messages exchanged between clients, the router (SThread) and TCPServer.
+ *
+ * A request runs: the client sends a RequestHeader describing the chain; the server
+ * answers with an Admission (ADMITTED, or QUEUED followed later by ADMITTED, or
+ * REJECTED); once admitted the client sends the Payload and the server answers with a
+ * Result. The server refuses a payload it has not admitted; it still has to read it,
+ * but never one larger than its memory budget.
+ *
+ * A chain session starts the same way, but the admitted client sends a ChainOpen in
+ * place of the Payload: the server answers with the product as usual and keeps the chain
+ * (and its reservation) until ChainClose or the end of the session. ChainUpdate and
+ * ChainQuery then name the chain by the request id it was opened with and are answered
+ * with a Result each, without going through admission again: they run on the chain's
+ * reservation, one at a time per server.
+ *
+ * A chain-times-vector request also starts with a header, one that counts its vectors;
+ * the admitted client sends a VectorPayload and the Result carries one vector per input.
+ *
+ * A boolean chain (BitMatrix, multiplied with AND/OR) is described by a header with bits
+ * set, sent as a BitPayload and answered with a Result carrying bits.
+ *
+ * Between router and server every message travels inside an Envelope naming the client
+ * session, so one server connection can carry many clients. Servers report their load
+ * to the router with ServerStatus.
+ *
+ * Matrices need not pass through the router at all. A server announces the port it takes
+ * direct connections on with a DataEndpoint. A client that sends DirectRequest is
+ * answered with a DirectRoute: its server's address and a one-time token, which the router
+ * has already passed to the server in a DirectGrant. The client connects there, sends a
+ * DirectHello with the token, and is answered DIRECT_ACCEPTED; from then on the session's
+ * messages travel on that socket, unwrapped, in both directions. The router connection
+ * stays open and ends the session when it closes. A DirectRoute without a host, or a
+ * failed connection, leaves the client relaying through the router as before.
+ */
+public final class Protocol {
+    // Server's answer to a DirectHello whose token it granted
+    public static final String DIRECT_ACCEPTED = "Connected to the server.";
+
+    private Protocol() {
+    }
+
+    public static final class RequestHeader implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;
+        public final int matrixCount;
+        public final int rows;
+        public final int cols;
+        public final long timeoutMillis;  // From when the server reads the header; 0 uses the server default
+        public final int vectors;         // Vectors the chain is applied to; 0 for the full product
+        public final boolean bits;        // A boolean chain of BitMatrix
+        public final long clientId;       // Scheduling identity shared by a client's connections; 0 for none
+
+        public RequestHeader(long requestId, int matrixCount, int rows, int cols) {
+            this(requestId, matrixCount, rows, cols, 0);
+        }
+
+        public RequestHeader(long requestId, int matrixCount, int rows, int cols, long timeoutMillis) {
+            this(requestId, matrixCount, rows, cols, timeoutMillis, 0);
+        }
+
+        public RequestHeader(long requestId, int matrixCount, int rows, int cols, long timeoutMillis, int vectors) {
+            this(requestId, matrixCount, rows, cols, timeoutMillis, vectors, false);
+        }
+
+        public RequestHeader(long requestId, int matrixCount, int rows, int cols, long timeoutMillis, int vectors,
+                             boolean bits) {
+            this(requestId, matrixCount, rows, cols, timeoutMillis, vectors, bits, 0);
+        }
+
+        public RequestHeader(long requestId, int matrixCount, int rows, int cols, long timeoutMillis, int vectors,
+                             boolean bits, long clientId) {
+            this.requestId = requestId;
+            this.matrixCount = matrixCount;
+            this.rows = rows;
+            this.cols = cols;
+            this.timeoutMillis = timeoutMillis;
+            this.vectors = vectors;
+            this.bits = bits;
+            this.clientId = clientId;
+        }
+
+        // The same request, scheduled together with every other request that names clientId
+        public RequestHeader forClient(long clientId) {
+            return new RequestHeader(requestId, matrixCount, rows, cols, timeoutMillis, vectors, bits, clientId);
+        }
+
+        public static RequestHeader describe(long requestId, matrix[] chain) {
+            return describe(requestId, chain, 0);
+        }
+
+        public static RequestHeader describe(long requestId, matrix[] chain, long timeoutMillis) {
+            return new RequestHeader(requestId, chain.length, chain[0].getRows(), chain[chain.length - 1].getCols(),
+                    timeoutMillis);
+        }
+
+        public static RequestHeader describe(long requestId, matrix[] chain, int[][] vectors, long timeoutMillis) {
+            return new RequestHeader(requestId, chain.length, chain[0].getRows(), chain[chain.length - 1].getCols(),
+                    timeoutMillis, vectors.length);
+        }
+
+        public static RequestHeader describe(long requestId, BitMatrix[] chain, long timeoutMillis) {
+            return new RequestHeader(requestId, chain.length, chain[0].getRows(), chain[chain.length - 1].getCols(),
+                    timeoutMillis, 0, true);
+        }
+
+        /**
+         * Heap the server needs for the job: the deserialized inputs, the reduction's
+         * intermediate products and headroom for Strassen's temporaries. Vector requests
+         * only hold the inputs and a few vectors at a time; boolean matrices take a bit
+         * per entry, plus the Four Russians tables of every product that can run at once
+         * (no more than the server has processors).
+         */
+        public long estimatedBytes() {
+            long matrixBytes = bits ? 8L * rows * ((cols + 63) / 64) + 16L * rows : 4L * rows * cols + 16L * rows;
+            if (vectors > 0) {
+                return matrixBytes * (matrixCount + 1) + 12L * vectors * Math.max(rows, cols);
+            }
+            long bytes = matrixBytes * (2L * matrixCount + 6);
+            if (bits) {
+                int atOnce = Math.max(1, Math.min(matrixCount - 1, Runtime.getRuntime().availableProcessors()));
+                bytes += atOnce * BitMatrix.tableBytes(Math.max(rows, cols), cols);
+            }
+            return bytes;
+        }
+
+        // Multiply-adds of the chain with the standard kernel (an upper bound for Strassen);
+        // boolean products do 64 entries per word operation
+        public double estimatedFlops() {
+            if (vectors > 0) {
+                return 2.0 * rows * (double) cols * matrixCount * vectors;
+            }
+            double flops = 2.0 * rows * (double) rows * cols * Math.max(1, matrixCount - 1);
+            return bits ? flops / 64 : flops;
+        }
+
+        @Override
+        public String toString() {
+            return "request " + requestId + " (" + matrixCount + " x " + rows + "x" + cols
+                    + (vectors > 0 ? " times " + vectors + " vectors" : "") + (bits ? " boolean" : "") + ")";
+        }
+    }
+
+    public enum Decision { ADMITTED, QUEUED, REJECTED }
+
+    public static final class Admission implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;
+        public final Decision decision;
+        public final String reason;
+
+        public Admission(long requestId, Decision decision, String reason) {
+            this.requestId = requestId;
+            this.decision = decision;
+            this.reason = reason;
+        }
+    }
+
+    public static final class Payload implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;
+        public final matrix[] matrices;
+
+        public Payload(long requestId, matrix[] matrices) {
+            this.requestId = requestId;
+            this.matrices = matrices;
+        }
+    }
+
+    // Sent instead of a Payload for a chain-times-vector request
+    public static final class VectorPayload implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;
+        public final matrix[] matrices;
+        public final int[][] vectors;
+
+        public VectorPayload(long requestId, matrix[] matrices, int[][] vectors) {
+            this.requestId = requestId;
+            this.matrices = matrices;
+            this.vectors = vectors;
+        }
+    }
+
+    // Sent instead of a Payload for a boolean chain
+    public static final class BitPayload implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;
+        public final BitMatrix[] matrices;
+
+        public BitPayload(long requestId, BitMatrix[] matrices) {
+            this.requestId = requestId;
+            this.matrices = matrices;
+        }
+    }
+
+    public static final class ChainOpen implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;  // Also names the chain in later messages
+        public final matrix[] matrices;
+
+        public ChainOpen(long requestId, matrix[] matrices) {
+            this.requestId = requestId;
+            this.matrices = matrices;
+        }
+    }
+
+    // Replaces one matrix of an open chain; the Result carries the new product
+    public static final class ChainUpdate implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;
+        public final long chainId;
+        public final int index;
+        public final matrix replacement;
+
+        public ChainUpdate(long requestId, long chainId, int index, matrix replacement) {
+            this.requestId = requestId;
+            this.chainId = chainId;
+            this.index = index;
+            this.replacement = replacement;
+        }
+    }
+
+    // Asks for the product of matrices from..to (inclusive) of an open chain
+    public static final class ChainQuery implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;
+        public final long chainId;
+        public final int from;
+        public final int to;
+
+        public ChainQuery(long requestId, long chainId, int from, int to) {
+            this.requestId = requestId;
+            this.chainId = chainId;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    public static final class ChainClose implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long chainId;
+
+        public ChainClose(long chainId) {
+            this.chainId = chainId;
+        }
+    }
+
+    public static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long requestId;
+        public final matrix result;  // null when the request failed
+        public final String error;
+        public final int[][] vectors;  // Chain times each requested vector, for vector requests
+        public final BitMatrix bits;   // The product of a boolean chain
+
+        public Result(long requestId, matrix result, String error) {
+            this(requestId, result, error, null);
+        }
+
+        public Result(long requestId, matrix result, String error, int[][] vectors) {
+            this(requestId, result, error, vectors, null);
+        }
+
+        public Result(long requestId, matrix result, String error, int[][] vectors, BitMatrix bits) {
+            this.requestId = requestId;
+            this.result = result;
+            this.error = error;
+            this.vectors = vectors;
+            this.bits = bits;
+        }
+    }
+
+    // Router <-> server framing for one client session
+    public static final class Envelope implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long sessionId;
+        public final Object message;
+
+        public Envelope(long sessionId, Object message) {
+            this.sessionId = sessionId;
+            this.message = message;
+        }
+    }
+
+    // Server -> router: where clients of this server may connect directly
+    public static final class DataEndpoint implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final String host;
+        public final int port;
+
+        public DataEndpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    // Client -> router: asks for its server's data endpoint
+    public static final class DirectRequest implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Router -> client; host is null when the server takes no direct connections
+    public static final class DirectRoute implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final String host;
+        public final int port;
+        public final long sessionId;
+        public final String token;
+
+        public DirectRoute(String host, int port, long sessionId, String token) {
+            this.host = host;
+            this.port = port;
+            this.sessionId = sessionId;
+            this.token = token;
+        }
+    }
+
+    // Router -> server, never inside an Envelope, so a client cannot grant itself a session
+    public static final class DirectGrant implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long sessionId;
+        public final String token;
+
+        public DirectGrant(long sessionId, String token) {
+            this.sessionId = sessionId;
+            this.token = token;
+        }
+    }
+
+    // Client -> server, first message on a direct connection
+    public static final class DirectHello implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long sessionId;
+        public final String token;
+
+        public DirectHello(long sessionId, String token) {
+            this.sessionId = sessionId;
+            this.token = token;
+        }
+    }
+
+    // Server -> router backpressure signal
+    public static final class ServerStatus implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final boolean accepting;
+        public final int queuedRequests;
+        public final long reservedBytes;
+
+        public ServerStatus(boolean accepting, int queuedRequests, long reservedBytes) {
+            this.accepting = accepting;
+            this.queuedRequests = queuedRequests;
+            this.reservedBytes = reservedBytes;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * What actually happened during one tree reduction in MatrixFileIO: one span per
+ * multiplication task, recording when it was queued, when a thread picked it up, when
+ * its inputs were ready, when it finished, which thread ran it and how many bytes it
+ * allocated.
+ *
+ * A trace can be summarised (per-thread utilisation, critical path, wait/compute
+ * histograms) or exported in the Chrome trace event format for chrome://tracing or
+ * Perfetto.
+ */
+public class ReductionTrace {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_TRACKING = THREADS instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+
+    public static class Span {
+        final String label;
+        final int level;
+        final Span[] inputs;  // spans producing this task's operands; null entries are plain leaves
+        volatile long submitted;
+        volatile long started;
+        volatile long ready;
+        volatile long finished;
+        volatile String thread;
+        volatile long threadId;
+        volatile long allocatedBytes;
+        private long allocationMark;
+
+        Span(String label, int level, Span... inputs) {
+            this.label = label;
+            this.level = level;
+            this.inputs = inputs;
+        }
+
+        // Called when the task's operands are done and it is handed to the pool
+        void enqueued() {
+            submitted = System.nanoTime();
+        }
+
+        // Called by the worker when it picks the task up
+        void start() {
+            started = System.nanoTime();
+            Thread t = Thread.currentThread();
+            thread = t.getName();
+            threadId = t.getId();
+        }
+
+        // Called once the operands are available and the multiply begins
+        void inputsReady() {
+            ready = System.nanoTime();
+            allocationMark = allocatedByCurrentThread();
+        }
+
+        void finish() {
+            finished = System.nanoTime();
+            allocatedBytes = allocatedByCurrentThread() - allocationMark;
+        }
+
+        public long queueWait() {
+            return started - submitted;
+        }
+
+        public long dependencyWait() {
+            return ready - started;
+        }
+
+        public long computeTime() {
+            return finished - ready;
+        }
+
+        boolean isComplete() {
+            return finished != 0;
+        }
+    }
+
+    private final long origin = System.nanoTime();
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+    private volatile long completed;
+    private volatile Span root;
+
+    Span submit(String label, int level, Span... inputs) {
+        Span span = new Span(label, level, inputs);
+        span.submitted = System.nanoTime();
+        spans.add(span);
+        return span;
+    }
+
+    void complete(Span rootSpan) {
+        root = rootSpan;
+        completed = System.nanoTime();
+    }
+
+    public List<Span> getSpans() {
+        List<Span> done = new ArrayList<>();
+        for (Span s : spans) {
+            if (s.isComplete()) done.add(s);
+        }
+        done.sort(Comparator.comparingLong(s -> s.started));
+        return done;
+    }
+
+    public long getWallTime() {
+        return (completed == 0 ? System.nanoTime() : completed) - origin;
+    }
+
+    public LatencyHistogram queueWaitHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        getSpans().forEach(s -> h.record(s.queueWait()));
+        return h;
+    }
+
+    public LatencyHistogram computeHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        getSpans().forEach(s -> h.record(s.computeTime()));
+        return h;
+    }
+
+    /**
+     * The chain of spans that determined the finish time: from the root, repeatedly
+     * follow the input that finished last.
+     */
+    public List<Span> criticalPath() {
+        LinkedList<Span> path = new LinkedList<>();
+        Span current = root;
+        while (current != null && current.isComplete()) {
+            path.addFirst(current);
+            Span latest = null;
+            for (Span input : current.inputs) {
+                if (input != null && input.isComplete() && (latest == null || input.finished > latest.finished)) {
+                    latest = input;
+                }
+            }
+            current = latest;
+        }
+        return path;
+    }
+
+    public void printSummary(PrintStream out) {
+        out.println(summary());
+    }
+
+    // What printSummary prints, as one block of text for a logger
+    public String summary() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        List<Span> done = getSpans();
+        long wall = getWallTime();
+        out.println("\nReduction Trace (" + done.size() + " tasks, " + String.format("%.3f", wall / 1e6) + " ms):");
+
+        // Per-thread busy time: what each pool thread actually did
+        Map<String, long[]> perThread = new TreeMap<>();  // name -> {tasks, busy ns, bytes}
+        for (Span s : done) {
+            long[] t = perThread.computeIfAbsent(s.thread, k -> new long[3]);
+            t[0]++;
+            t[1] += s.computeTime();
+            t[2] += s.allocatedBytes;
+        }
+        out.println(String.format("  %-22s %6s %11s %7s %12s", "Thread", "Tasks", "Busy ms", "Util", "Allocated"));
+        perThread.forEach((name, t) -> out.println(String.format("  %-22s %6d %11.3f %6.1f%% %9.1f MB",
+                name, t[0], t[1] / 1e6, wall == 0 ? 0.0 : 100.0 * t[1] / wall, t[2] / 1048576.0)));
+
+        List<Span> path = criticalPath();
+        if (!path.isEmpty()) {
+            long pathCompute = path.stream().mapToLong(Span::computeTime).sum();
+            out.println(String.format("  Critical path (%d tasks, %.3f ms computing):", path.size(), pathCompute / 1e6));
+            for (Span s : path) {
+                out.println(String.format("    L%-2d %-24s %-22s queued %.3f ms, computed %.3f ms",
+                        s.level, s.label, s.thread, s.queueWait() / 1e6, s.computeTime() / 1e6));
+            }
+        }
+
+        out.println("  " + queueWaitHistogram().summary("Queue wait", 1e6, "ms"));
+        out.println("  " + computeHistogram().summary("Compute", 1e6, "ms"));
+        out.flush();
+        return text.toString().stripTrailing();
+    }
+
+    /**
+     * Writes the trace in the Chrome trace event format: one complete ("X") event per task
+     * on the thread that ran it, plus a queued event covering the time before it started.
+     */
+    public void writeChromeTrace(Writer writer) throws IOException {
+        List<Span> done = getSpans();
+        PrintWriter out = new PrintWriter(writer);
+        out.println("{\"traceEvents\":[");
+        Map<Long, String> threadNames = new TreeMap<>();
+        boolean first = true;
+        for (Span s : done) {
+            threadNames.put(s.threadId, s.thread);
+            out.print(first ? "" : ",\n");
+            first = false;
+            out.print(String.format(Locale.ROOT,
+                    "{\"name\":\"%s\",\"cat\":\"multiply\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f,"
+                            + "\"args\":{\"level\":%d,\"queueWaitUs\":%.3f,\"dependencyWaitUs\":%.3f,\"allocatedBytes\":%d}}",
+                    escape(s.label), s.threadId, micros(s.ready), (s.finished - s.ready) / 1e3,
+                    s.level, s.queueWait() / 1e3, s.dependencyWait() / 1e3, s.allocatedBytes));
+            if (s.ready > s.started) {
+                out.print(String.format(Locale.ROOT,
+                        ",\n{\"name\":\"wait %s\",\"cat\":\"wait\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f}",
+                        escape(s.label), s.threadId, micros(s.started), (s.ready - s.started) / 1e3));
+            }
+        }
+        for (Map.Entry<Long, String> t : threadNames.entrySet()) {
+            out.print(String.format(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                    t.getKey(), escape(t.getValue())));
+        }
+        out.println("\n]}");
+        out.flush();
+    }
+
+    private double micros(long nanos) {
+        return (nanos - origin) / 1e3;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static long allocatedByCurrentThread() {
+        if (!ALLOCATION_TRACKING) return 0;
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Collects small requests for a short window and hands them on as one batch, so the
+ * server runs them together as rounds of small tasks (MatrixFileIO.batchResultMatrix)
+ * instead of paying pool setup and future plumbing for each.
+ *
+ * A batch is flushed when the window since its first request closes or when it is full,
+ * whichever comes first. Tuned with -Dserver.batch.windowMicros (0 disables batching),
+ * -Dserver.batch.maxRequests, -Dserver.batch.maxSize and -Dserver.batch.maxCount.
+ */
+public class RequestBatcher {
+    public static final class Entry {
+        final AdmissionController.Ticket ticket;
+        final Protocol.Payload payload;
+        final long arrived = System.nanoTime();
+
+        Entry(AdmissionController.Ticket ticket, Protocol.Payload payload) {
+            this.ticket = ticket;
+            this.payload = payload;
+        }
+    }
+
+    private final long windowMicros;
+    private final int maxRequests;
+    private final int maxSize;
+    private final int maxCount;
+    private final Consumer<List<Entry>> sink;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "batch-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private List<Entry> pending = new ArrayList<>();
+    private ScheduledFuture<?> deadline;
+
+    public RequestBatcher(long windowMicros, int maxRequests, int maxSize, int maxCount,
+                          Consumer<List<Entry>> sink) {
+        this.windowMicros = windowMicros;
+        this.maxRequests = maxRequests;
+        this.maxSize = maxSize;
+        this.maxCount = maxCount;
+        this.sink = sink;
+    }
+
+    public static RequestBatcher fromSystemProperties(Consumer<List<Entry>> sink) {
+        return new RequestBatcher(
+                Long.getLong("server.batch.windowMicros", 2000),
+                Integer.getInteger("server.batch.maxRequests", 64),
+                Integer.getInteger("server.batch.maxSize", 64),
+                Integer.getInteger("server.batch.maxCount", 4),
+                sink);
+    }
+
+    // Small square chains only; anything bigger is worth a reduction tree of its own
+    public boolean accepts(Protocol.RequestHeader header) {
+        return windowMicros > 0 && header.rows == header.cols
+                && header.rows <= maxSize && header.matrixCount <= maxCount;
+    }
+
+    public void add(AdmissionController.Ticket ticket, Protocol.Payload payload) {
+        List<Entry> full = null;
+        synchronized (this) {
+            pending.add(new Entry(ticket, payload));
+            if (pending.size() >= maxRequests) {
+                full = takePending();
+            } else if (deadline == null) {
+                deadline = timer.schedule(this::flush, windowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (full != null) {
+            sink.accept(full);
+        }
+    }
+
+    private void flush() {
+        List<Entry> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        if (!batch.isEmpty()) {
+            sink.accept(batch);
+        }
+    }
+
+    private List<Entry> takePending() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        List<Entry> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -1,47 +1,93 @@
 import java.io.*;
 import java.net.*;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SThread extends Thread {
+    private static final Metrics.Counter BYTES_IN = Metrics.counter("router_bytes_in_total");
+    private static final Metrics.Counter BYTES_OUT = Metrics.counter("router_bytes_out_total");
+    private static final Metrics.Counter TO_SERVER = Metrics.counter("router_messages_to_server_total");
+    private static final Metrics.Counter TO_CLIENT = Metrics.counter("router_messages_to_client_total");
+    private static final Metrics.Counter DROPPED = Metrics.counter("router_messages_dropped_total");
+    // Clients blocked in findServerThread; goes up and down, so a gauge rather than a counter
+    private static final AtomicInteger CLIENTS_WAITING = new AtomicInteger();
+    private static final LatencyHistogram FORWARD_TIME = Metrics.histogram("router_forward_nanos");
+    private static final LatencyHistogram SERVER_WAIT_TIME = Metrics.histogram("router_server_wait_nanos");
+    private static final Metrics.Counter DIRECT_ROUTES = Metrics.counter("router_direct_routes_total");
+    private static final AtomicLong NEXT_SESSION = new AtomicLong();
+    private static final SecureRandom TOKENS = new SecureRandom();
+    // The router deserializes everything it forwards, so it bounds each message the way a
+    // server does: no array longer than a matrix side, and no message over a share of its heap
+    private static final int MAX_DIMENSION = Integer.getInteger("router.maxDimension", 16384);
+    private static final long MAX_MESSAGE_BYTES = Long.getLong("router.maxMessageMb",
+            Runtime.getRuntime().maxMemory() / (1024 * 1024) * 6 / 10) * 1024 * 1024;
+
+    static {
+        Metrics.gauge("router_clients_waiting", CLIENTS_WAITING::get);
+    }
+
     private Object[][] RTable;
     private String addr;
     private Socket clientSocket;
     private int ind;
     private ObjectOutputStream objectOut;
     private ObjectInputStream objectIn;
+    private final MessageFilter filter = new MessageFilter(
+            ObjectInputFilter.Config.createFilter("maxarray=" + MAX_DIMENSION + ";maxdepth=16"), MAX_MESSAGE_BYTES);
     private SThread serverThread;
-    private SThread clientThread;
-    private boolean isServer = false;
+    private volatile boolean isServer = false;
     private volatile boolean running = true;
 
+    // Client side: this connection's session on its server
+    private final long sessionId = NEXT_SESSION.incrementAndGet();
+    private boolean byeForwarded;
+
+    // Server side: the client sessions multiplexed over this connection, and whether the
+    // server currently wants new ones (see Protocol.ServerStatus)
+    private final Map<Long, SThread> sessions = new ConcurrentHashMap<>();
+    private volatile boolean accepting = true;
+    // Where its clients can reach the server directly; null if it takes no direct connections
+    private volatile String dataHost;
+    private volatile int dataPort;
+
     SThread(Object[][] Table, Socket toClient, int index) throws IOException {
         RTable = Table;
         clientSocket = toClient;
+        clientSocket.setTcpNoDelay(true);
         addr = toClient.getInetAddress().getHostAddress();
         ind = index;
 
-        RTable[index][0] = addr;
-        RTable[index][1] = this;
+        synchronized (RTable) {
+            RTable[index][0] = addr;
+            RTable[index][1] = this;
+        }
 
-        objectOut = new ObjectOutputStream(clientSocket.getOutputStream());
+        objectOut = new ObjectOutputStream(Metrics.countingOutput(clientSocket.getOutputStream(), BYTES_OUT));
         objectOut.flush();
-        objectIn = new ObjectInputStream(clientSocket.getInputStream());
+        objectIn = new ObjectInputStream(Metrics.countingInput(clientSocket.getInputStream(), BYTES_IN));
+        objectIn.setObjectInputFilter(filter);
     }
 
     public void run() {
         try {
-            System.out.println("[Thread-" + ind + "] Handling connection for: " + addr);
+            Log.debug("[Thread-" + ind + "] Handling connection for: " + addr);
 
             // Handle initial connection
+            filter.startMessage();
             Object initialMessage = objectIn.readObject();
-            System.out.println("[Thread-" + ind + "] Received initial message: " + initialMessage);
+            Log.debug("[Thread-" + ind + "] Received initial message: " + initialMessage);
 
             if (initialMessage instanceof String) {
                 String msg = (String) initialMessage;
                 if ("SERVER".equals(msg)) {
                     isServer = true;
-                    System.out.println("[Thread-" + ind + "] Server connected");
+                    Log.info("[Thread-" + ind + "] Server connected from " + addr);
                 } else {
-                    System.out.println("[Thread-" + ind + "] Client requesting server at: " + msg);
+                    Log.debug("[Thread-" + ind + "] Client requesting server at: " + msg);
                 }
             }
 
@@ -50,18 +96,16 @@ public class SThread extends Thread {
 
             if (!isServer) {
                 findServerThread();
-                if (serverThread != null) {
-                    serverThread.setClientThread(this);
-                }
             }
 
             // Main message handling loop
             while (running && !clientSocket.isClosed()) {
                 try {
+                    filter.startMessage();
                     Object message = objectIn.readObject();
                     if (message == null) break;
 
-                    System.out.println("[Thread-" + ind + "] Received message type: " + message.getClass().getSimpleName());
+                    Log.debug(() -> "[Thread-" + ind + "] Received message type: " + message.getClass().getSimpleName());
 
                     if (isServer) {
                         handleServerMessage(message);
@@ -70,77 +114,168 @@ public class SThread extends Thread {
                     }
 
                     if ("Bye.".equals(message)) {
-                        System.out.println("[Thread-" + ind + "] Received Bye message, closing connection");
+                        byeForwarded = !isServer;
+                        Log.debug("[Thread-" + ind + "] Received Bye message, closing connection");
                         break;
                     }
                 } catch (EOFException | SocketException e) {
                     // Normal socket closure
-                    System.out.println("[Thread-" + ind + "] Connection closed by " + (isServer ? "server" : "client"));
+                    Log.debug("[Thread-" + ind + "] Connection closed by " + (isServer ? "server" : "client"));
                     break;
                 } catch (IOException e) {
                     if (!running) break;
-                    System.err.println("[Thread-" + ind + "] IO Error: " + e.getMessage());
+                    Log.warn("[Thread-" + ind + "] IO Error: " + e.getMessage());
                     break;
                 }
             }
         } catch (Exception e) {
             if (running) {
-                System.err.println("[Thread-" + ind + "] Unexpected error: " + e.getMessage());
-                e.printStackTrace();
+                Log.error("[Thread-" + ind + "] Unexpected error: " + e.getMessage(), e);
             }
         } finally {
             cleanup();
         }
     }
 
-    private void findServerThread() {
-        for (int i = 0; i < RTable.length; i++) {
-            if (RTable[i][1] != null && i != ind) {
-                SThread potentialServer = (SThread) RTable[i][1];
-                if (potentialServer.isServer) {
-                    serverThread = potentialServer;
-                    System.out.println("[Thread-" + ind + "] Found server at index: " + i);
-                    return;
+    // Binds this client to the accepting server with the fewest sessions, waiting while
+    // every server is applying backpressure. Messages from the client stay buffered in the
+    // socket until then.
+    private void findServerThread() throws InterruptedException {
+        long start = System.nanoTime();
+        synchronized (RTable) {
+            boolean waiting = false;
+            try {
+                while (running && !clientSocket.isClosed()) {
+                    SThread best = null;
+                    for (int i = 0; i < RTable.length; i++) {
+                        if (RTable[i][1] != null && i != ind) {
+                            SThread potentialServer = (SThread) RTable[i][1];
+                            if (potentialServer.isServer && potentialServer.accepting
+                                    && (best == null || potentialServer.sessions.size() < best.sessions.size())) {
+                                best = potentialServer;
+                            }
+                        }
+                    }
+                    if (best != null) {
+                        serverThread = best;
+                        serverThread.sessions.put(sessionId, this);
+                        Log.debug("[Thread-" + ind + "] Session " + sessionId + " assigned to server thread "
+                                + best.ind + " (" + best.sessions.size() + " sessions)");
+                        return;
+                    }
+                    if (!waiting) {
+                        Log.debug("[Thread-" + ind + "] No accepting server in routing table, waiting");
+                        CLIENTS_WAITING.incrementAndGet();
+                        waiting = true;
+                    }
+                    RTable.wait(1000);
                 }
+            } finally {
+                if (waiting) {
+                    CLIENTS_WAITING.decrementAndGet();
+                }
+                SERVER_WAIT_TIME.record(System.nanoTime() - start);
             }
         }
-        System.err.println("[Thread-" + ind + "] No server found in routing table");
     }
 
-    public void setClientThread(SThread client) {
-        this.clientThread = client;
-        System.out.println("[Thread-" + ind + "] Set client thread: " + client.ind);
+    boolean isServer() {
+        return isServer;
+    }
+
+    boolean isBusy() {
+        return !sessions.isEmpty();
+    }
+
+    // Writers on other threads share these streams, so every write goes through here
+    private void send(Object message) throws IOException {
+        synchronized (objectOut) {
+            objectOut.writeObject(message);
+            objectOut.reset(); // Don't keep every forwarded matrix reachable
+            objectOut.flush();
+        }
     }
 
     private void handleServerMessage(Object message) {
-        try {
-            if (message instanceof matrix[] || message instanceof matrix) {
-                System.out.println("[Thread-" + ind + "] Server processing message: " + message.getClass().getSimpleName());
-
-                if (clientThread != null) {
-                    System.out.println("[Thread-" + ind + "] Server forwarding response to client thread: " + clientThread.ind);
-                    clientThread.objectOut.writeObject(message);
-                    clientThread.objectOut.flush();
-                    System.out.println("[Thread-" + ind + "] Server sent response to client");
-                } else {
-                    System.err.println("[Thread-" + ind + "] No client thread to send response to!");
+        if (message instanceof Protocol.ServerStatus) {
+            Protocol.ServerStatus status = (Protocol.ServerStatus) message;
+            accepting = status.accepting;
+            Log.debug("[Thread-" + ind + "] Server " + (accepting ? "accepting again" : "applying backpressure")
+                    + ", " + status.queuedRequests + " requests queued");
+            if (accepting) {
+                synchronized (RTable) {
+                    RTable.notifyAll();
                 }
             }
+            return;
+        }
+        if (message instanceof Protocol.DataEndpoint) {
+            Protocol.DataEndpoint endpoint = (Protocol.DataEndpoint) message;
+            dataPort = endpoint.port;
+            dataHost = endpoint.host;
+            Log.info("[Thread-" + ind + "] Server takes direct connections at " + endpoint.host + ":" + endpoint.port);
+            return;
+        }
+        if (!(message instanceof Protocol.Envelope)) {
+            DROPPED.increment();
+            return;
+        }
+        Protocol.Envelope envelope = (Protocol.Envelope) message;
+        SThread client = sessions.get(envelope.sessionId);
+        if (client == null) {
+            // The client left while its request was in flight
+            DROPPED.increment();
+            Log.debug("[Thread-" + ind + "] No client for session " + envelope.sessionId);
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            client.send(envelope.message);
+            FORWARD_TIME.record(System.nanoTime() - start);
+            TO_CLIENT.increment();
+            Log.debug(() -> "[Thread-" + ind + "] Server sent response to client thread: " + client.ind);
         } catch (IOException e) {
-            System.err.println("[Thread-" + ind + "] Error in server handling: " + e.getMessage());
+            Log.warn("[Thread-" + ind + "] Error forwarding to client thread " + client.ind + ": " + e.getMessage());
         }
     }
 
     private void handleClientMessage(Object message) {
-        if (serverThread == null) return;
+        if (serverThread == null) {
+            DROPPED.increment();
+            return;
+        }
 
         try {
-            serverThread.objectOut.writeObject(message);
-            serverThread.objectOut.flush();
-            System.out.println("[Thread-" + ind + "] Forwarded to server: " + message.getClass().getSimpleName());
+            if (message instanceof Protocol.DirectRequest) {
+                routeDirect();
+                return;
+            }
+            long start = System.nanoTime();
+            serverThread.send(new Protocol.Envelope(sessionId, message));
+            FORWARD_TIME.record(System.nanoTime() - start);
+            TO_SERVER.increment();
+            Log.debug(() -> "[Thread-" + ind + "] Forwarded to server: " + message.getClass().getSimpleName());
         } catch (IOException e) {
-            System.err.println("[Thread-" + ind + "] Error handling client message: " + e.getMessage());
+            Log.warn("[Thread-" + ind + "] Error handling client message: " + e.getMessage());
+        }
+    }
+
+    // Takes this router out of the client's data path: the server learns the session's
+    // token before the client does, so it knows the token by the time the client connects
+    private void routeDirect() throws IOException {
+        SThread server = serverThread;
+        String host = server.dataHost;
+        if (host == null) {
+            send(new Protocol.DirectRoute(null, 0, sessionId, null));
+            return;
         }
+        byte[] bytes = new byte[16];
+        TOKENS.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        server.send(new Protocol.DirectGrant(sessionId, token));
+        send(new Protocol.DirectRoute(host, server.dataPort, sessionId, token));
+        DIRECT_ROUTES.increment();
+        Log.debug(() -> "[Thread-" + ind + "] Session " + sessionId + " routed directly to " + host);
     }
 
     private void cleanup() {
@@ -150,17 +285,33 @@ public class SThread extends Thread {
             if (objectIn != null) objectIn.close();
             if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
 
-            // Clear references
-            RTable[ind][1] = null;
-            if (isServer) {
-                clientThread = null;
-            } else {
-                serverThread = null;
+            // Clear references and release the session so the server can drop its state
+            synchronized (RTable) {
+                RTable[ind][1] = null;
+                if (isServer) {
+                    // Its clients will never get answers; disconnect them so they can retry
+                    for (SThread client : sessions.values()) {
+                        client.running = false;
+                        client.clientSocket.close();
+                    }
+                    sessions.clear();
+                } else if (serverThread != null) {
+                    serverThread.sessions.remove(sessionId);
+                    if (!byeForwarded) {
+                        try {
+                            serverThread.send(new Protocol.Envelope(sessionId, "Bye."));
+                        } catch (IOException e) {
+                            Log.debug("[Thread-" + ind + "] Server already gone: " + e.getMessage());
+                        }
+                    }
+                    serverThread = null;
+                }
+                RTable.notifyAll();
             }
 
-            System.out.println("[Thread-" + ind + "] Cleanup complete");
+            Log.debug("[Thread-" + ind + "] Cleanup complete");
         } catch (IOException e) {
-            System.err.println("[Thread-" + ind + "] Error in cleanup: " + e.getMessage());
+            Log.warn("[Thread-" + ind + "] Error in cleanup: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
@@ -4,8 +4,10 @@ import java.util.*;
 
 public class TCPClient {
     public static void main(String[] args) {
-        String routerIP = "localhost";
-        int routerPort = 5555;
+        String routerIP = args.length > 0 ? args[0] : "localhost";
+        int routerPort = args.length > 1 ? Integer.parseInt(args[1]) : 5555;
+        long timeoutMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;  // 0: server default
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
         Socket socket = null;
         ObjectOutputStream objectOut = null;
         ObjectInputStream objectIn = null;
@@ -13,6 +15,7 @@ public class TCPClient {
         try {
             // Connect to router
             socket = new Socket(routerIP, routerPort);
+            socket.setTcpNoDelay(true);
             System.out.println("Connected to router at " + routerIP + ":" + routerPort);
 
             // Get local address
@@ -41,45 +44,55 @@ public class TCPClient {
             System.out.print("Number of Matrices: ");
             int numMatrices = scanner.nextInt();
 
-            System.out.println("Generating " + numMatrices + " matrices of size " + matrixSize + "x" + matrixSize);
+            System.out.println("Generating " + numMatrices + " matrices of size " + matrixSize + "x" + matrixSize +
+                    " (seed " + seed + ")");
 
-            // Generate matrices
-            matrix[] matrices = new matrix[numMatrices];
+            // Generate matrices, reproducible from the seed
+            matrix[] matrices = MatrixGenerator.generateChain(matrixSize, numMatrices, 1, 10, seed); // Using smaller numbers for readability
             for (int i = 0; i < numMatrices; i++) {
-                matrices[i] = new matrix(MatrixGenerator.generateMatrix(matrixSize, 1, 10)); // Using smaller numbers for readability
                 System.out.println("Generated matrix " + (i + 1) + ":");
                 printMatrix(matrices[i].getMatrixData(), 100); // Print first 5x5 of each matrix
             }
-            System.out.println("Correct Answer:");
-            matrix correctAnswer = checkMath(matrices);
-            printMatrix(correctAnswer.getMatrixData(), 100);
-
-            // Send start signal
-            System.out.println("\nSending start signal");
-            objectOut.writeObject("Start");
-            objectOut.flush();
-
-            // Send matrices
-            System.out.println("Sending matrices");
-            objectOut.writeObject(matrices);
-            objectOut.flush();
-
-            // Send end signal
-            System.out.println("Sending end signal");
-            objectOut.writeObject("End");
+            // Describe the request and wait for the server to admit it
+            Protocol.RequestHeader header = Protocol.RequestHeader.describe(1, matrices, timeoutMillis);
+            System.out.println("\nRequesting admission for " + header);
+            objectOut.writeObject(header);
             objectOut.flush();
 
-            // Wait for result
-            System.out.println("Waiting for result...");
-            Object result = objectIn.readObject();
+            Object result = null;
+            while (result == null) {
+                Object message = objectIn.readObject();
+                if (message instanceof Protocol.Admission) {
+                    Protocol.Admission admission = (Protocol.Admission) message;
+                    System.out.println("Server decision: " + admission.decision +
+                            (admission.reason != null ? " (" + admission.reason + ")" : ""));
+                    if (admission.decision == Protocol.Decision.REJECTED) {
+                        break;
+                    }
+                    if (admission.decision == Protocol.Decision.ADMITTED) {
+                        // Send matrices
+                        System.out.println("Sending matrices");
+                        objectOut.writeObject(new Protocol.Payload(header.requestId, matrices));
+                        objectOut.flush();
+                        System.out.println("Waiting for result...");
+                    }
+                } else if (message instanceof Protocol.Result) {
+                    result = message;
+                }
+            }
 
-            if (result instanceof matrix) {
+            if (result != null && ((Protocol.Result) result).result != null) {
                 System.out.println("\nReceived result matrix:");
-                int[][] resultData = ((matrix) result).getMatrixData();
-                printMatrix(resultData, 100);
-
-            } else {
-                System.out.println("Received unexpected result type: " + (result != null ? result.getClass().getSimpleName() : "null"));
+                matrix product = ((Protocol.Result) result).result;
+                printMatrix(product.getMatrixData(), 100);
+
+                // Check the answer in O(k n^2) rather than recomputing the chain
+                int rounds = FreivaldsVerifier.DEFAULT_ROUNDS;
+                System.out.println(FreivaldsVerifier.verify(matrices, product, rounds, System.nanoTime())
+                        ? "Verified (" + rounds + " Freivalds rounds)"
+                        : "Result is WRONG");
+            } else if (result != null) {
+                System.out.println("Server failed the request: " + ((Protocol.Result) result).error);
             }
 
             // Send goodbye
@@ -115,36 +128,4 @@ public class TCPClient {
             System.out.println("... (matrix continues)");
         }
     }
-
-    // Math Checker for matrix multiplication
-    private static matrix checkMath(matrix[] matrices) {
-        // Check matrix dimensions
-        for (int i = 0; i < matrices.length - 1; i++) {
-            int[][] matrix1 = matrices[i].getMatrixData();
-            int[][] matrix2 = matrices[i + 1].getMatrixData();
-            if (matrix1[0].length != matrix2.length) {
-                throw new IllegalArgumentException("Matrix dimensions don't match for multiplication");
-            }
-        }
-
-        // Multiply matrices
-        int[][] result = matrices[0].getMatrixData();
-        for (int i = 1; i < matrices.length; i++) {
-            int[][] matrix1 = result;
-            int[][] matrix2 = matrices[i].getMatrixData();
-            int rows = matrix1.length;
-            int cols = matrix2[0].length;
-            int[][] product = new int[rows][cols];
-            for (int j = 0; j < rows; j++) {
-                for (int k = 0; k < cols; k++) {
-                    for (int l = 0; l < matrix1[0].length; l++) {
-                        product[j][k] += matrix1[j][l] * matrix2[l][k];
-                    }
-                }
-            }
-            result = product;
-        }
-
-        return new matrix(result);
-    }
-}
\ No newline at end of file
+}
@@ -1,10 +1,191 @@
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.ExecutionException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TCPServer {
+    // The single-threaded baseline doubles the work per request; load tests turn it off
+    private static final boolean MEASURE_BASELINE =
+            Boolean.parseBoolean(System.getProperty("server.baseline", "true"));
+    private static final String TRACE_DIR = System.getProperty("server.traceDir");
+    private static final AtomicInteger traceCount = new AtomicInteger();
+    private static final int MAX_DIMENSION = Integer.getInteger("server.maxDimension", 16384);
+    // Deadline for requests whose header does not set one; 0 means none
+    private static final long REQUEST_TIMEOUT_MS = Long.getLong("server.requestTimeoutMs", 0);
+    // Keep operands and intermediates off the Java heap (square chains of one size only)
+    private static final boolean OFF_HEAP = Boolean.getBoolean("server.offheap");
+    // Freivalds rounds run on every result before it is sent; 0 skips the check
+    private static final int VERIFY_ROUNDS = Integer.getInteger("server.verifyRounds", 0);
+    // Threads of the multiplication pool every job shares
+    private static final int POOL_THREADS =
+            Integer.getInteger("server.poolThreads", Runtime.getRuntime().availableProcessors());
+    // Jobs in progress at once; their node tasks are interleaved on the pool by the scheduler
+    private static final int JOB_THREADS = Integer.getInteger("server.jobThreads", 4);
+    // Jobs estimated at or below this much work have their node tasks run first
+    private static final double SMALL_JOB_FLOPS = Long.getLong("server.smallJobMflop", 500) * 1e6;
+    // Pool threads one client may occupy at once; 0 for no limit
+    private static final int CLIENT_QUOTA = Integer.getInteger("server.clientQuota", 0);
+    // Port for direct client connections; -1 (the default) takes none, 0 picks a free one
+    private static final int DATA_PORT = Integer.getInteger("server.dataPort", -1);
+    // Address direct connections are taken on and clients are sent to; by default the one
+    // this server reaches the router from
+    private static final String DATA_HOST = System.getProperty("server.dataHost");
+    // Direct connections open at once; further ones are refused
+    private static final int MAX_DIRECT = Integer.getInteger("server.maxDirectConnections", 64);
+    // How long a direct connection waits for the router's grant of its session
+    private static final long GRANT_WAIT_MS = 5000;
+    // How long a new direct connection may take to send its hello
+    private static final int HELLO_TIMEOUT_MS = 10_000;
+    // All a direct connection may send before it is authenticated
+    private static final String HELLO_FILTER = "Protocol$DirectHello;java.lang.String;!*";
+
+    // Shared by the reader thread and the job workers, which answer clients asynchronously
+    private static ObjectOutputStream routerOut;
+    private static AdmissionController admission;
+    private static FairScheduler scheduler;
+    private static boolean accepting = true;  // Last status sent to the router
+    private static final ExecutorService jobWorkers = Executors.newFixedThreadPool(JOB_THREADS, daemon("job-worker"));
+    // Each session's chain messages run one at a time on the job workers, so they apply in
+    // the order the client sent them while other sessions' chains go ahead
+    private static final Map<Long, SerialQueue> chainQueues = new ConcurrentHashMap<>();
+    // Small requests wait here briefly and then run together as one job
+    private static final RequestBatcher batcher =
+            RequestBatcher.fromSystemProperties(batch -> jobWorkers.execute(() -> runBatch(batch)));
+    // Requests admitted or queued by admission control, keyed by session and request id
+    private static final Map<String, AdmissionController.Ticket> tickets = new ConcurrentHashMap<>();
+    // Open chain sessions, keyed like tickets by the request that opened them. Each keeps its
+    // admission ticket, so the memory it holds stays reserved until it is closed.
+    private static final Map<String, OpenChain> chains = new ConcurrentHashMap<>();
+    // Tokens the router issued to sessions that may connect directly, guarded by itself
+    private static final Map<Long, String> grants = new HashMap<>();
+    // Sessions whose messages travel on a direct connection instead of through the router
+    private static final Map<Long, DirectConnection> directSessions = new ConcurrentHashMap<>();
+    // One thread per open direct connection, up to MAX_DIRECT
+    private static final ExecutorService directThreads = new ThreadPoolExecutor(0, MAX_DIRECT,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), daemon("direct-connection"));
+    private static ServerSocket dataSocket;
+
+    private static final class OpenChain {
+        final AdmissionController.Ticket ticket;
+        final ChainSession session;
+
+        OpenChain(AdmissionController.Ticket ticket, ChainSession session) {
+            this.ticket = ticket;
+            this.session = session;
+        }
+    }
+
+    // Runs its tasks one at a time, in the order given, each as a task of its own on the job
+    // workers so a long queue does not keep a worker from other sessions
+    private static final class SerialQueue implements Executor {
+        private final Deque<Runnable> pending = new ArrayDeque<>();
+        private boolean running;
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            pending.add(task);
+            if (!running) {
+                running = true;
+                jobWorkers.execute(this::runNext);
+            }
+        }
+
+        private void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = pending.poll();
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        running = false;
+                    } else {
+                        jobWorkers.execute(this::runNext);
+                    }
+                }
+            }
+        }
+    }
+
+    private static SerialQueue chainQueue(long sessionId) {
+        return chainQueues.computeIfAbsent(sessionId, id -> new SerialQueue());
+    }
+
+    // A client connected straight to this server; carries one session's messages unwrapped
+    private static final class DirectConnection {
+        final long sessionId;
+        final Socket socket;
+        final ObjectOutputStream out;
+
+        DirectConnection(long sessionId, Socket socket, ObjectOutputStream out) {
+            this.sessionId = sessionId;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void send(Object message) {
+            synchronized (out) {
+                try {
+                    out.writeObject(message);
+                    out.reset();
+                    out.flush();
+                } catch (IOException e) {
+                    Log.warn("Failed to send to session " + sessionId + ": " + e.getMessage());
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    private static final Metrics.Counter REQUESTS = Metrics.counter("server_requests_total");
+    private static final Metrics.Counter REQUESTS_FAILED = Metrics.counter("server_requests_failed_total");
+    private static final Metrics.Counter REQUESTS_CANCELLED = Metrics.counter("server_requests_cancelled_total");
+    private static final Metrics.Counter MATRICES = Metrics.counter("server_matrices_total");
+    private static final Metrics.Counter BYTES_IN = Metrics.counter("server_bytes_in_total");
+    private static final Metrics.Counter BYTES_OUT = Metrics.counter("server_bytes_out_total");
+    private static final LatencyHistogram REQUEST_TIME = Metrics.histogram("server_request_nanos");
+    private static final LatencyHistogram DESERIALIZE_TIME = Metrics.histogram("server_deserialize_nanos");
+    private static final LatencyHistogram SERIALIZE_TIME = Metrics.histogram("server_serialize_nanos");
+    private static final LatencyHistogram COMPUTE_TIME = Metrics.histogram("server_compute_nanos");
+    private static final Metrics.Counter BATCHES = Metrics.counter("server_batches_total");
+    private static final Metrics.Counter VERIFY_FAILURES = Metrics.counter("server_verify_failures_total");
+    private static final LatencyHistogram VERIFY_TIME = Metrics.histogram("server_verify_nanos");
+    private static final LatencyHistogram BATCH_SIZE = Metrics.histogram("server_batch_size_requests");
+    private static final LatencyHistogram BATCH_TIME = Metrics.histogram("server_batch_compute_nanos");
+    private static final Metrics.Counter CHAIN_UPDATES = Metrics.counter("server_chain_updates_total");
+    private static final Metrics.Counter CHAIN_QUERIES = Metrics.counter("server_chain_queries_total");
+    private static final Metrics.Counter DIRECT_REFUSED = Metrics.counter("server_direct_refused_total");
+
+    static {
+        Metrics.gauge("server_pool_threads", MatrixFileIO::getCurrentThreadCount);
+        Metrics.gauge("server_pool_active", MatrixFileIO::getActiveTaskCount);
+        Metrics.gauge("server_pool_queue_depth", MatrixFileIO::getQueuedTaskCount);
+        Metrics.gauge("server_pool_utilization",
+                () -> (double) MatrixFileIO.getActiveTaskCount() / Math.max(1, MatrixFileIO.getCurrentThreadCount()));
+        Metrics.gauge("server_cache_hits", () -> MatrixFileIO.getCache().getHits());
+        Metrics.gauge("server_cache_misses", () -> MatrixFileIO.getCache().getMisses());
+        Metrics.gauge("server_cache_bytes", () -> MatrixFileIO.getCache().getSizeBytes());
+        Metrics.gauge("server_offheap_live_bytes", OffHeapArena.SHARED::getLiveBytes);
+        Metrics.gauge("server_offheap_pooled_bytes", OffHeapArena.SHARED::getPooledBytes);
+        Metrics.gauge("server_offheap_allocated_bytes", OffHeapArena.SHARED::getAllocatedBytes);
+        Metrics.gauge("server_chains_open", chains::size);
+        Metrics.gauge("server_direct_sessions", directSessions::size);
+        Metrics.gauge("server_scheduler_queued_tasks", () -> scheduler == null ? 0 : scheduler.getQueuedTaskCount());
+        Metrics.gauge("server_scheduler_clients", () -> scheduler == null ? 0 : scheduler.getActiveClientCount());
+    }
+
     private static class PerformanceMetrics {
         final long duration;
         final long baselineTime;
@@ -13,10 +194,12 @@ public class TCPServer {
         final int threadCount;
         final int matrixCount;
         final int matrixSize;
+        final ReductionTrace trace;
 
         PerformanceMetrics(long duration, long baselineTime, int threadCount,
-                           int matrixCount, int matrixSize) {
+                           int matrixCount, int matrixSize, ReductionTrace trace) {
             this.duration = duration;
+            this.trace = trace;
             this.baselineTime = baselineTime;
             this.threadCount = threadCount;
             this.matrixCount = matrixCount;
@@ -26,183 +209,845 @@ public class TCPServer {
         }
 
         void print() {
-            System.out.println("\nPerformance Metrics:");
-            System.out.println("Matrix Size: " + matrixSize + "x" + matrixSize);
-            System.out.println("Number of matrices: " + matrixCount);
-            System.out.println("Binary Tree Depth: " + (int) (Math.log(matrixCount) / Math.log(2)));
-            System.out.println("Number of threads used: " + threadCount);
-            System.out.println(String.format("Matrix multiplication time: %.4f seconds", duration / 1e9));
-            System.out.println(String.format("Baseline time: %.4f seconds", baselineTime / 1e9));
-            System.out.println(String.format("Speedup: %.2fx (%.2f%%)",
+            Log.info("\nPerformance Metrics:");
+            Log.info("Matrix Size: " + matrixSize + "x" + matrixSize);
+            Log.info("Number of matrices: " + matrixCount);
+            Log.info("Binary Tree Depth: " + (int) (Math.log(matrixCount) / Math.log(2)));
+            Log.info("Number of threads used: " + threadCount);
+            Log.info(String.format("Matrix multiplication time: %.4f seconds", duration / 1e9));
+            Log.info(String.format("Baseline time: %.4f seconds", baselineTime / 1e9));
+            Log.info(String.format("Speedup: %.2fx (%.2f%%)",
                     speedup, speedup * 100));
-            System.out.println(String.format("Parallel Efficiency: %.2f (%.2f%%)",
+            Log.info(String.format("Parallel Efficiency: %.2f (%.2f%%)",
                     efficiency, efficiency * 100));
-
-            // Print thread allocation visualization
-            printThreadAllocation(threadCount, matrixCount);
-        }
-
-        private void printThreadAllocation(int threads, int matrices) {
-            System.out.println("\nThread Allocation in Binary Tree:");
-            int levels = (int) (Math.log(matrices) / Math.log(2));
-            int nodesInLastLevel = matrices / 2;
-
-            // Build tree representation
-            List<String> treeLines = new ArrayList<>();
-            for (int level = 0; level <= levels; level++) {
-                StringBuilder line = new StringBuilder();
-                int nodesAtLevel = (int) Math.pow(2, level);
-                int threadsPerNode = level == 0 ? 1 :
-                        threads / (nodesAtLevel > threads ? threads : nodesAtLevel);
-
-                // Add spacing for tree visualization
-                int padding = (int) Math.pow(2, levels - level + 2);
-                line.append(" ".repeat(padding));
-
-                // Add nodes for this level
-                for (int node = 0; node < nodesAtLevel &&
-                        (level != levels || node < nodesInLastLevel); node++) {
-                    if (level == levels) {
-                        line.append("M").append(node * 2 + 1).append("-M").append(node * 2 + 2);
-                    } else {
-                        line.append(String.format("T%d", threadsPerNode));
-                    }
-                    line.append(" ".repeat(padding * 2));
-                }
-                treeLines.add(line.toString());
+            if (MatrixFileIO.isCacheEnabled()) {
+                Log.info("Product cache: " + MatrixFileIO.getCache());
             }
 
-            // Print the tree
-            for (String line : treeLines) {
-                System.out.println(line);
+            // What each thread actually did during the parallel run
+            if (trace != null) {
+                Log.info(trace.summary());
             }
         }
     }
 
     public static void main(String[] args) {
-        String routerIP = "localhost";
-        int routerPort = 5555;
+        String routerIP = args.length > 0 ? args[0] : "localhost";
+        int routerPort = args.length > 1 ? Integer.parseInt(args[1]) : 5555;
         Socket routerSocket = null;
         ObjectOutputStream objectOut = null;
         ObjectInputStream objectIn = null;
 
         try {
             String serverAddress = InetAddress.getLocalHost().getHostAddress();
-            System.out.println("Server IP: " + serverAddress);
+            Log.info("Server IP: " + serverAddress);
 
             routerSocket = new Socket(routerIP, routerPort);
-            System.out.println("Connected to router socket");
+            routerSocket.setTcpNoDelay(true);
+            Log.info("Connected to router socket");
 
-            objectOut = new ObjectOutputStream(routerSocket.getOutputStream());
+            Metrics.expose("server");
+            admission = AdmissionController.fromSystemProperties();
+            MatrixFileIO.initializeSharedPool(POOL_THREADS);
+            scheduler = new FairScheduler(MatrixFileIO.getExecutor(), POOL_THREADS, CLIENT_QUOTA);
+
+            objectOut = new ObjectOutputStream(Metrics.countingOutput(routerSocket.getOutputStream(), BYTES_OUT));
             objectOut.flush();
-            objectIn = new ObjectInputStream(routerSocket.getInputStream());
+            objectIn = new ObjectInputStream(Metrics.countingInput(routerSocket.getInputStream(), BYTES_IN));
+            MessageFilter routerFilter = payloadFilter();
+            objectIn.setObjectInputFilter(routerFilter);
+            routerOut = objectOut;
 
-            System.out.println("Sending SERVER identification...");
+            Log.info("Sending SERVER identification...");
             objectOut.writeObject("SERVER");
             objectOut.flush();
 
             String confirmation = (String) objectIn.readObject();
-            System.out.println("Router response: " + confirmation);
+            Log.info("Router response: " + confirmation);
+            if (DATA_PORT >= 0) {
+                startDataListener(DATA_HOST != null ? DATA_HOST : routerSocket.getLocalAddress().getHostAddress());
+            }
 
             boolean running = true;
             while (running) {
                 try {
-                    System.out.println("\nWaiting for incoming message...");
+                    Log.debug("\nWaiting for incoming message...");
+                    long readStart = System.nanoTime();
+                    routerFilter.startMessage();
                     Object incoming = objectIn.readObject();
-                    System.out.println("Received message of type: " +
-                            (incoming != null ? incoming.getClass().getSimpleName() : "null"));
-
-                    if (incoming instanceof String) {
-                        String command = (String) incoming;
-                        System.out.println("Received command: " + command);
-
-                        if ("Start".equals(command)) {
-                            processMatrices(objectIn, objectOut);
-                        } else if ("Bye.".equals(command)) {
-                            System.out.println("Received Bye command, ending session");
-                            running = false;
+                    long readTime = System.nanoTime() - readStart;
+
+                    if (incoming instanceof Protocol.Envelope) {
+                        Protocol.Envelope envelope = (Protocol.Envelope) incoming;
+                        Log.debug(() -> "Session " + envelope.sessionId + " sent " +
+                                (envelope.message != null ? envelope.message.getClass().getSimpleName() : "null"));
+                        if (envelope.message instanceof Protocol.Payload) {
+                            DESERIALIZE_TIME.record(readTime);
                         }
+                        handleMessage(envelope.sessionId, envelope.message);
+                    } else if (incoming instanceof Protocol.DirectGrant) {
+                        Protocol.DirectGrant grant = (Protocol.DirectGrant) incoming;
+                        synchronized (grants) {
+                            grants.put(grant.sessionId, grant.token);
+                            grants.notifyAll();
+                        }
+                    } else {
+                        Log.debug(() -> "Ignoring unframed message of type: " +
+                                (incoming != null ? incoming.getClass().getSimpleName() : "null"));
                     }
                 } catch (EOFException e) {
-                    System.out.println("Client disconnected (EOF)");
+                    Log.info("Router disconnected (EOF)");
                     break;
                 } catch (SocketException e) {
-                    System.out.println("Socket exception: " + e.getMessage());
+                    Log.info("Socket exception: " + e.getMessage());
                     break;
                 } catch (StreamCorruptedException e) {
-                    System.out.println("Stream corrupted: " + e.getMessage());
+                    Log.info("Stream corrupted: " + e.getMessage());
                     break;
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Error: " + e.getMessage(), e);
         } finally {
             cleanup(objectOut, objectIn, routerSocket);
         }
     }
 
-    private static void processMatrices(ObjectInputStream objectIn, ObjectOutputStream objectOut)
-            throws IOException, ClassNotFoundException, ExecutionException, InterruptedException {
-        Object matricesObj = objectIn.readObject();
+    // Messages are deserialized before the server knows which request they belong to, so
+    // a payload sent without admission, or larger than its header said, is read before it
+    // is refused. This bounds what reading one costs: no array longer than a matrix side,
+    // and no message larger than the memory budget, which no admitted request exceeds.
+    // Each connection reads one message at a time.
+    private static MessageFilter payloadFilter() {
+        return new MessageFilter(ObjectInputFilter.Config.createFilter("maxarray=" + MAX_DIMENSION + ";maxdepth=16"),
+                admission.getMemoryBudget());
+    }
+
+    // Listens only on the address clients are given, not on every interface
+    private static void startDataListener(String host) throws IOException {
+        dataSocket = new ServerSocket(DATA_PORT, 50, InetAddress.getByName(host));
+        Thread acceptor = daemon("direct-acceptor").newThread(() -> {
+            while (!dataSocket.isClosed()) {
+                try {
+                    Socket socket = dataSocket.accept();
+                    try {
+                        directThreads.execute(() -> serveDirect(socket));
+                    } catch (RejectedExecutionException e) {
+                        DIRECT_REFUSED.increment();
+                        Log.warn("Refused direct connection from " + socket.getInetAddress().getHostAddress() +
+                                ": " + MAX_DIRECT + " already open");
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    if (!dataSocket.isClosed()) {
+                        Log.warn("Direct connection failed: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        acceptor.start();
+        writeToRouter(new Protocol.DataEndpoint(host, dataSocket.getLocalPort()));
+        Log.info("Taking direct connections at " + host + ":" + dataSocket.getLocalPort());
+    }
+
+    // Reads one direct connection, on a thread of its own, as the main loop reads the router's.
+    // Until its hello is checked the connection may send nothing but the hello, and only
+    // for HELLO_TIMEOUT_MS; after that it gets the router connection's payload filter.
+    private static void serveDirect(Socket socket) {
+        DirectConnection connection = null;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HELLO_TIMEOUT_MS);
+            ObjectOutputStream out = new ObjectOutputStream(Metrics.countingOutput(socket.getOutputStream(), BYTES_OUT));
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(Metrics.countingInput(socket.getInputStream(), BYTES_IN));
+            // A stream takes one filter, so this one switches once the hello is accepted
+            ObjectInputFilter helloFilter = ObjectInputFilter.Config.createFilter(HELLO_FILTER);
+            MessageFilter payloadFilter = payloadFilter();
+            boolean[] authenticated = {false};
+            in.setObjectInputFilter(info -> (authenticated[0] ? payloadFilter : helloFilter).checkInput(info));
+            Object hello = in.readObject();
+            if (!(hello instanceof Protocol.DirectHello) || !takeGrant((Protocol.DirectHello) hello)) {
+                DIRECT_REFUSED.increment();
+                Log.warn("Refused direct connection from " + socket.getInetAddress().getHostAddress());
+                out.writeObject("Refused.");
+                out.flush();
+                return;
+            }
+            authenticated[0] = true;
+            socket.setSoTimeout(0);
+            connection = new DirectConnection(((Protocol.DirectHello) hello).sessionId, socket, out);
+            directSessions.put(connection.sessionId, connection);
+            connection.send(Protocol.DIRECT_ACCEPTED);
+            Log.debug("Session " + connection.sessionId + " connected directly");
+
+            while (true) {
+                long readStart = System.nanoTime();
+                payloadFilter.startMessage();
+                Object message = in.readObject();
+                if (message instanceof Protocol.Payload) {
+                    DESERIALIZE_TIME.record(System.nanoTime() - readStart);
+                }
+                handleMessage(connection.sessionId, message);
+                if ("Bye.".equals(message)) {
+                    break;
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            Log.debug("Direct connection from " + socket.getInetAddress().getHostAddress() + " closed");
+        } catch (IOException | ClassNotFoundException | InterruptedException e) {
+            Log.warn("Direct connection failed: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+            // Unless the session already ended through the router
+            if (connection != null && directSessions.remove(connection.sessionId, connection)) {
+                endSession(connection.sessionId);
+            }
+        }
+    }
+
+    // Whether the router granted this session with this token; each grant is used once.
+    // The router sends the grant before the client learns the token, but it may still be
+    // in flight behind other messages.
+    private static boolean takeGrant(Protocol.DirectHello hello) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRANT_WAIT_MS);
+        synchronized (grants) {
+            while (!grants.containsKey(hello.sessionId)) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(grants, left);
+            }
+            if (hello.token == null || !MessageDigest.isEqual(hello.token.getBytes(StandardCharsets.UTF_8),
+                    grants.get(hello.sessionId).getBytes(StandardCharsets.UTF_8))) {
+                return false;
+            }
+            grants.remove(hello.sessionId);
+            return true;
+        }
+    }
+
+    // Runs on a reader thread (the router's or a direct connection's); anything slow is
+    // handed to a worker
+    private static void handleMessage(long sessionId, Object message) {
+        if (message instanceof Protocol.RequestHeader) {
+            Protocol.RequestHeader header = (Protocol.RequestHeader) message;
+            AdmissionController.Ticket ticket = new AdmissionController.Ticket(sessionId, header);
+            ticket.token = CancellationToken.withTimeout(
+                    header.timeoutMillis > 0 ? header.timeoutMillis : REQUEST_TIMEOUT_MS);
+            Protocol.Admission decision = admission.offer(ticket);
+            Log.debug(() -> "Session " + sessionId + " " + header + ": " + decision.decision +
+                    (decision.reason != null ? " (" + decision.reason + ")" : ""));
+            if (decision.decision != Protocol.Decision.REJECTED) {
+                tickets.put(key(sessionId, header.requestId), ticket);
+            }
+            send(sessionId, decision);
+            updateStatus();
+        } else if (message instanceof Protocol.Payload) {
+            Protocol.Payload payload = (Protocol.Payload) message;
+            AdmissionController.Ticket ticket = admittedTicket(sessionId, payload.requestId);
+            if (ticket == null) {
+                return;
+            }
+            if (batcher.accepts(ticket.header)) {
+                try {
+                    checkBatchable(payload, ticket.header);
+                } catch (IllegalArgumentException e) {
+                    REQUESTS_FAILED.increment();
+                    finish(ticket, new Protocol.Result(payload.requestId, null, e.getMessage()), System.nanoTime());
+                    return;
+                }
+                batcher.add(ticket, payload);
+            } else {
+                jobWorkers.execute(() -> runJob(ticket, payload));
+            }
+        } else if (message instanceof Protocol.VectorPayload) {
+            Protocol.VectorPayload payload = (Protocol.VectorPayload) message;
+            AdmissionController.Ticket ticket = admittedTicket(sessionId, payload.requestId);
+            if (ticket != null) {
+                jobWorkers.execute(() -> runVectorJob(ticket, payload));
+            }
+        } else if (message instanceof Protocol.BitPayload) {
+            Protocol.BitPayload payload = (Protocol.BitPayload) message;
+            AdmissionController.Ticket ticket = admittedTicket(sessionId, payload.requestId);
+            if (ticket != null) {
+                jobWorkers.execute(() -> runBooleanJob(ticket, payload));
+            }
+        } else if (message instanceof Protocol.ChainOpen) {
+            Protocol.ChainOpen open = (Protocol.ChainOpen) message;
+            AdmissionController.Ticket ticket = admittedTicket(sessionId, open.requestId);
+            if (ticket != null) {
+                chainQueue(sessionId).execute(() -> runChainOpen(ticket, open));
+            }
+        } else if (message instanceof Protocol.ChainUpdate || message instanceof Protocol.ChainQuery
+                || message instanceof Protocol.ChainClose) {
+            // Behind the session's earlier chain messages, so they apply in the order sent
+            chainQueue(sessionId).execute(() -> runChainMessage(sessionId, message));
+        } else if ("Bye.".equals(message)) {
+            endSession(sessionId);
+        }
+    }
 
-        if (matricesObj instanceof matrix[]) {
-            matrix[] matrices = (matrix[]) matricesObj;
-            int matrixSize = matrices[0].getRows();
-            System.out.println("\nProcessing " + matrices.length +
-                    " matrices of size " + matrixSize + "x" + matrixSize);
+    // The ticket a payload was admitted under, or null after telling the client it was not
+    private static AdmissionController.Ticket admittedTicket(long sessionId, long requestId) {
+        AdmissionController.Ticket ticket = tickets.get(key(sessionId, requestId));
+        if (ticket == null || !ticket.isAdmitted()) {
+            REQUESTS_FAILED.increment();
+            send(sessionId, new Protocol.Result(requestId, null, "payload sent before admission"));
+            return null;
+        }
+        if (!ticket.claim()) {
+            REQUESTS_FAILED.increment();
+            send(sessionId, new Protocol.Result(requestId, null, "payload already received for this request"));
+            return null;
+        }
+        return ticket;
+    }
 
-            // Initialize thread pool based on matrix count
-            MatrixFileIO.initializeThreadPool(matrices.length);
-            int threadCount = MatrixFileIO.getCurrentThreadCount();
-            System.out.println("Initialized thread pool with " + threadCount + " threads");
+    private static void runJob(AdmissionController.Ticket ticket, Protocol.Payload payload) {
+        long requestStart = System.nanoTime();
+        Protocol.Result response;
+        try {
+            matrix[] matrices = payload.matrices;
+            checkMatchesHeader(matrices, ticket.header, 0);
+            response = checked(matrices, new Protocol.Result(payload.requestId,
+                    new matrix(processMatrices(matrices, ticket)), null));
+        } catch (CancellationException e) {
+            REQUESTS_CANCELLED.increment();
+            Log.info("Request " + payload.requestId + " of session " + ticket.sessionId +
+                    " cancelled: " + e.getMessage());
+            response = new Protocol.Result(payload.requestId, null, "cancelled: " + e.getMessage());
+        } catch (ExecutionException | RuntimeException e) {
+            REQUESTS_FAILED.increment();
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            Log.warn("Request " + payload.requestId + " failed: " + cause);
+            response = new Protocol.Result(payload.requestId, null, String.valueOf(cause.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = new Protocol.Result(payload.requestId, null, "server shutting down");
+        }
+        finish(ticket, response, requestStart);
+    }
 
-            // Process matrices and measure time
-            long startTime = System.nanoTime();
-            int[][] result = MatrixFileIO.resultMatrix(matrices);
-            long endTime = System.nanoTime();
-            long duration = endTime - startTime;
+    // Chain times vectors: matrix-vector products only, never the full product
+    private static void runVectorJob(AdmissionController.Ticket ticket, Protocol.VectorPayload payload) {
+        long requestStart = System.nanoTime();
+        Protocol.Result response;
+        try {
+            matrix[] matrices = payload.matrices;
+            checkMatchesHeader(matrices, ticket.header, payload.vectors == null ? -1 : payload.vectors.length);
+            REQUESTS.increment();
+            MATRICES.add(matrices.length);
+            ticket.token.throwIfCancelled();
+            long start = System.nanoTime();
+            int[][] results;
+            try (FairScheduler.Job job = openJob(ticket)) {
+                results = MatrixFileIO.chainTimesVectors(matrices, payload.vectors, ticket.token, job);
+            }
+            COMPUTE_TIME.record(System.nanoTime() - start);
+            response = new Protocol.Result(payload.requestId, null, null, results);
+        } catch (CancellationException e) {
+            REQUESTS_CANCELLED.increment();
+            response = new Protocol.Result(payload.requestId, null, "cancelled: " + e.getMessage());
+        } catch (ExecutionException | RuntimeException e) {
+            REQUESTS_FAILED.increment();
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            Log.warn("Vector request " + payload.requestId + " failed: " + cause);
+            response = new Protocol.Result(payload.requestId, null, String.valueOf(cause.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = new Protocol.Result(payload.requestId, null, "server shutting down");
+        }
+        finish(ticket, response, requestStart);
+    }
 
+    // Boolean chain: the same tree reduction over bit-packed matrices
+    private static void runBooleanJob(AdmissionController.Ticket ticket, Protocol.BitPayload payload) {
+        long requestStart = System.nanoTime();
+        Protocol.Result response;
+        try {
+            BitMatrix[] matrices = payload.matrices;
+            Protocol.RequestHeader header = ticket.header;
+            if (!header.bits || matrices == null || matrices.length != header.matrixCount || matrices.length == 0) {
+                throw new IllegalArgumentException("payload does not match its admitted header " + header);
+            }
+            for (int i = 0; i < matrices.length; i++) {
+                if (matrices[i] == null || !matrices[i].isWellFormed()) {
+                    throw new IllegalArgumentException("matrix " + i + " is malformed");
+                }
+                if (i > 0 && matrices[i - 1].getCols() != matrices[i].getRows()) {
+                    throw new IllegalArgumentException("matrix " + (i - 1) + " has " + matrices[i - 1].getCols()
+                            + " columns but matrix " + i + " has " + matrices[i].getRows() + " rows");
+                }
+            }
+            if (matrices[0].getRows() != header.rows || matrices[matrices.length - 1].getCols() != header.cols) {
+                throw new IllegalArgumentException("payload does not match its admitted header " + header);
+            }
+            REQUESTS.increment();
+            MATRICES.add(matrices.length);
+            ticket.token.throwIfCancelled();
+            long start = System.nanoTime();
+            BitMatrix product;
+            try (FairScheduler.Job job = openJob(ticket)) {
+                product = MatrixFileIO.booleanResultMatrix(matrices, ticket.token, job);
+            }
+            COMPUTE_TIME.record(System.nanoTime() - start);
+            response = new Protocol.Result(payload.requestId, null, null, null, product);
+        } catch (CancellationException e) {
+            REQUESTS_CANCELLED.increment();
+            response = new Protocol.Result(payload.requestId, null, "cancelled: " + e.getMessage());
+        } catch (ExecutionException | RuntimeException e) {
+            REQUESTS_FAILED.increment();
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            Log.warn("Boolean request " + payload.requestId + " failed: " + cause);
+            response = new Protocol.Result(payload.requestId, null, String.valueOf(cause.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = new Protocol.Result(payload.requestId, null, "server shutting down");
+        }
+        finish(ticket, response, requestStart);
+    }
+
+    // Builds a chain session and answers with its product; the reservation stays with the chain
+    private static void runChainOpen(AdmissionController.Ticket ticket, Protocol.ChainOpen open) {
+        long requestStart = System.nanoTime();
+        try {
+            matrix[] matrices = open.matrices;
+            checkMatchesHeader(matrices, ticket.header, 0);
+            if (!isUniformSquare(matrices)) {
+                throw new IllegalArgumentException("chain sessions need square matrices of one size");
+            }
+            REQUESTS.increment();
+            MATRICES.add(matrices.length);
+            long start = System.nanoTime();
+            ChainSession session;
+            try (FairScheduler.Job job = openJob(ticket)) {
+                session = new ChainSession(matrices, ticket.token, job);
+            }
+            COMPUTE_TIME.record(System.nanoTime() - start);
+            Protocol.Result response = checked(matrices,
+                    new Protocol.Result(open.requestId, new matrix(session.product()), null));
+            if (response.result == null) {
+                finish(ticket, response, requestStart);
+                return;
+            }
+            tickets.remove(key(ticket.sessionId, ticket.requestId));
+            chains.put(key(ticket.sessionId, open.requestId), new OpenChain(ticket, session));
+            respond(ticket.sessionId, response, requestStart);
+            Log.debug(() -> "Session " + ticket.sessionId + " opened chain " + open.requestId +
+                    " of " + matrices.length + " matrices");
+        } catch (CancellationException e) {
+            REQUESTS_CANCELLED.increment();
+            finish(ticket, new Protocol.Result(open.requestId, null, "cancelled: " + e.getMessage()), requestStart);
+        } catch (ExecutionException | RuntimeException e) {
+            REQUESTS_FAILED.increment();
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            Log.warn("Chain " + open.requestId + " failed to open: " + cause);
+            finish(ticket, new Protocol.Result(open.requestId, null, String.valueOf(cause.getMessage())), requestStart);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(ticket, new Protocol.Result(open.requestId, null, "server shutting down"), requestStart);
+        }
+    }
+
+    // Updates, range queries and closes of an open chain. These are not admitted one by one:
+    // they run on the reservation the chain was opened with, which covers its stored partials
+    // (at most 2k - 1 products for k matrices) but not an operation's temporaries (up to
+    // 2 log2 k products for a range query), and they are not counted against the compute
+    // budget. What bounds them instead is that a session runs one at a time, and the job
+    // workers at most JOB_THREADS server-wide. Their products are scheduled like any job of
+    // the client that opened the chain.
+    private static void runChainMessage(long sessionId, Object message) {
+        if (message instanceof Protocol.ChainClose) {
+            closeChain(key(sessionId, ((Protocol.ChainClose) message).chainId));
+            return;
+        }
+        long requestStart = System.nanoTime();
+        long requestId = message instanceof Protocol.ChainUpdate
+                ? ((Protocol.ChainUpdate) message).requestId : ((Protocol.ChainQuery) message).requestId;
+        long chainId = message instanceof Protocol.ChainUpdate
+                ? ((Protocol.ChainUpdate) message).chainId : ((Protocol.ChainQuery) message).chainId;
+        OpenChain chain = chains.get(key(sessionId, chainId));
+        Protocol.Result response;
+        if (chain == null) {
+            REQUESTS_FAILED.increment();
+            response = new Protocol.Result(requestId, null, "no open chain " + chainId);
+        } else {
+            try {
+                CancellationToken token = CancellationToken.withTimeout(REQUEST_TIMEOUT_MS);
+                long start = System.nanoTime();
+                int[][] product;
+                try (FairScheduler.Job job = openJob(chain.ticket)) {
+                    if (message instanceof Protocol.ChainUpdate) {
+                        Protocol.ChainUpdate update = (Protocol.ChainUpdate) message;
+                        product = chain.session.update(update.index, update.replacement, token, job);
+                        CHAIN_UPDATES.increment();
+                    } else {
+                        Protocol.ChainQuery query = (Protocol.ChainQuery) message;
+                        product = chain.session.query(query.from, query.to, token, job);
+                        CHAIN_QUERIES.increment();
+                    }
+                }
+                COMPUTE_TIME.record(System.nanoTime() - start);
+                response = new Protocol.Result(requestId, new matrix(product), null);
+            } catch (CancellationException e) {
+                REQUESTS_CANCELLED.increment();
+                response = new Protocol.Result(requestId, null, "cancelled: " + e.getMessage());
+            } catch (ExecutionException | RuntimeException e) {
+                REQUESTS_FAILED.increment();
+                Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                Log.warn("Chain " + chainId + " request " + requestId + " failed: " + cause);
+                response = new Protocol.Result(requestId, null, String.valueOf(cause.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response = new Protocol.Result(requestId, null, "server shutting down");
+            }
+        }
+        respond(sessionId, response, requestStart);
+    }
+
+    private static void closeChain(String chainKey) {
+        OpenChain chain = chains.remove(chainKey);
+        if (chain != null) {
+            Log.debug("Closed chain " + chainKey);
+            notifyAdmitted(admission.release(chain.ticket));
+            updateStatus();
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // Small requests collected by the batcher: computed together, each answered as soon as
+    // its own product is done. Their payloads were checked before they joined the batch.
+    private static void runBatch(List<RequestBatcher.Entry> batch) {
+        matrix[][] chains = new matrix[batch.size()][];
+        CancellationToken[] tokens = new CancellationToken[batch.size()];
+        // Each request's products go through a job of its own client
+        FairScheduler.Job[] jobs = new FairScheduler.Job[batch.size()];
+        for (int i = 0; i < chains.length; i++) {
+            chains[i] = batch.get(i).payload.matrices;
+            tokens[i] = batch.get(i).ticket.token;
+            jobs[i] = openJob(batch.get(i).ticket);
+            REQUESTS.increment();
+            MATRICES.add(chains[i].length);
+        }
+
+        long start = System.nanoTime();
+        List<CompletableFuture<int[][]>> results = MatrixFileIO.batchResultMatrix(chains, tokens, jobs);
+        for (int i = 0; i < chains.length; i++) {
+            int c = i;
+            // Answered on a job worker, not on the pool thread that finished the product
+            results.get(i).whenComplete((product, failure) -> {
+                jobs[c].close();
+                jobWorkers.execute(() -> answerBatched(batch.get(c), product, failure));
+            });
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((done, failure) -> {
+            long duration = System.nanoTime() - start;
+            BATCHES.increment();
+            BATCH_SIZE.record(chains.length);
+            BATCH_TIME.record(duration);
+            Log.debug(() -> String.format("Batch of %d requests computed in %.3f ms", chains.length, duration / 1e6));
+        });
+    }
+
+    private static void answerBatched(RequestBatcher.Entry entry, int[][] product, Throwable failure) {
+        Protocol.Result response;
+        if (failure != null) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause() : failure;
+            if (cause instanceof CancellationException) {
+                REQUESTS_CANCELLED.increment();
+                response = new Protocol.Result(entry.payload.requestId, null, "cancelled: " + cause.getMessage());
+            } else {
+                REQUESTS_FAILED.increment();
+                Log.warn("Request " + entry.payload.requestId + " failed: " + cause);
+                response = new Protocol.Result(entry.payload.requestId, null, String.valueOf(cause.getMessage()));
+            }
+        } else if (product != null) {
+            response = checked(entry.payload.matrices, new Protocol.Result(entry.payload.requestId, new matrix(product), null));
+        } else {
+            REQUESTS_CANCELLED.increment();
+            response = new Protocol.Result(entry.payload.requestId, null, "cancelled: " + entry.ticket.token.getReason());
+        }
+        finish(entry.ticket, response, entry.arrived);
+    }
+
+    // A batched chain's products assume square matrices of one size
+    private static void checkBatchable(Protocol.Payload payload, Protocol.RequestHeader header) {
+        checkMatchesHeader(payload.matrices, header, 0);
+        for (matrix m : payload.matrices) {
+            if (m.getRows() != header.rows || m.getCols() != header.rows) {
+                throw new IllegalArgumentException("batched chains must be square matrices of one size");
+            }
+        }
+    }
+
+    // With -Dserver.verifyRounds, a product that fails Freivalds' check is never sent. The
+    // check runs on the request's own worker thread, outside the pool its client shares.
+    private static Protocol.Result checked(matrix[] chain, Protocol.Result response) {
+        if (VERIFY_ROUNDS <= 0) {
+            return response;
+        }
+        long start = System.nanoTime();
+        long seed = start;
+        boolean ok = FreivaldsVerifier.verify(chain, response.result, VERIFY_ROUNDS, seed, false);
+        VERIFY_TIME.record(System.nanoTime() - start);
+        if (ok) {
+            return response;
+        }
+        VERIFY_FAILURES.increment();
+        REQUESTS_FAILED.increment();
+        Log.error("Request " + response.requestId + " failed verification (seed " + seed + ")");
+        return new Protocol.Result(response.requestId, null, "result failed verification");
+    }
+
+    // Sends the result back to the client and returns the request's reservation
+    private static void finish(AdmissionController.Ticket ticket, Protocol.Result response, long requestStart) {
+        respond(ticket.sessionId, response, requestStart);
+        tickets.remove(key(ticket.sessionId, ticket.requestId));
+        notifyAdmitted(admission.release(ticket));
+        updateStatus();
+    }
+
+    private static void respond(long sessionId, Protocol.Result response, long requestStart) {
+        long writeStart = System.nanoTime();
+        send(sessionId, response);
+        long writeEnd = System.nanoTime();
+        SERIALIZE_TIME.record(writeEnd - writeStart);
+        REQUEST_TIME.record(writeEnd - requestStart);
+    }
+
+    // vectors is how many the payload carries, 0 for a full product; reservations are sized by kind.
+    // Deserialized matrices skip their constructor, so their shapes are checked here too.
+    private static void checkMatchesHeader(matrix[] matrices, Protocol.RequestHeader header, int vectors) {
+        if (matrices == null || matrices.length != header.matrixCount || matrices.length == 0
+                || vectors != header.vectors || header.bits) {
+            throw new IllegalArgumentException("payload does not match its admitted header " + header);
+        }
+        for (int i = 0; i < matrices.length; i++) {
+            if (matrices[i] == null || !matrices[i].isRectangular()) {
+                throw new IllegalArgumentException("matrix " + i + " is not rectangular");
+            }
+            if (i > 0 && matrices[i - 1].getCols() != matrices[i].getRows()) {
+                throw new IllegalArgumentException("matrix " + (i - 1) + " has " + matrices[i - 1].getCols()
+                        + " columns but matrix " + i + " has " + matrices[i].getRows() + " rows");
+            }
+        }
+        if (matrices[0].getRows() != header.rows || matrices[matrices.length - 1].getCols() != header.cols) {
+            throw new IllegalArgumentException("payload does not match its admitted header " + header);
+        }
+    }
+
+    private static boolean isUniformSquare(matrix[] matrices) {
+        int n = matrices[0].getRows();
+        for (matrix m : matrices) {
+            if (m.getRows() != n || m.getCols() != n) return false;
+        }
+        return true;
+    }
+
+    private static int[][] processMatrices(matrix[] matrices, AdmissionController.Ticket ticket)
+            throws ExecutionException, InterruptedException {
+        CancellationToken token = ticket.token;
+        token.throwIfCancelled();  // Expired while waiting for a job worker
+        int matrixSize = matrices[0].getRows();
+        REQUESTS.increment();
+        MATRICES.add(matrices.length);
+        Log.debug("\nProcessing " + matrices.length +
+                " matrices of size " + matrixSize + "x" + matrixSize);
+
+        int threadCount = MatrixFileIO.getCurrentThreadCount();
+
+        // Process matrices and measure time; node tasks share the pool with other jobs
+        long startTime = System.nanoTime();
+        int[][] result;
+        try (FairScheduler.Job job = openJob(ticket)) {
+            result = OFF_HEAP && isUniformSquare(matrices)
+                    ? MatrixFileIO.resultMatrixOffHeap(matrices, token, job)
+                    : MatrixFileIO.resultMatrix(matrices, token, job);
+        }
+        long endTime = System.nanoTime();
+        long duration = endTime - startTime;
+        COMPUTE_TIME.record(duration);
+        ReductionTrace trace = MatrixFileIO.getLastTrace();
+        writeTrace(trace);
+
+        if (MEASURE_BASELINE && Log.isEnabled(Log.Level.INFO)) {
             // Get baseline time
-            long baselineTime = getBaselineTime(matrices);
+            try {
+                long baselineTime = getBaselineTime(matrices, token);
 
-            // Create and display metrics
-            PerformanceMetrics metrics = new PerformanceMetrics(
-                    duration, baselineTime, threadCount, matrices.length, matrixSize);
-            metrics.print();
+                // Create and display metrics
+                PerformanceMetrics metrics = new PerformanceMetrics(
+                        duration, baselineTime, threadCount, matrices.length, matrixSize, trace);
+                metrics.print();
+            } catch (CancellationException e) {
+                // The result is done; only its comparison ran out of time
+                Log.debug("Baseline for request " + ticket.requestId + " cancelled: " + e.getMessage());
+            }
+        } else {
+            Log.debug(String.format("Matrix multiplication time: %.4f seconds", duration / 1e9));
+        }
+        return result;
+    }
 
-            // Send result back to client
-            matrix finalMatrix = new matrix(result);
-            objectOut.writeObject(finalMatrix);
-            objectOut.flush();
+    // A client left: cancel its running work, forget requests it never started, close its
+    // chains and let queued ones from others in
+    private static void endSession(long sessionId) {
+        Log.debug("Session " + sessionId + " ended");
+        synchronized (grants) {
+            grants.remove(sessionId);
+        }
+        DirectConnection connection = directSessions.remove(sessionId);
+        if (connection != null) {
+            connection.close();
+        }
+        List<AdmissionController.Ticket> freed = new ArrayList<>(admission.removeSession(sessionId));
+        for (Iterator<AdmissionController.Ticket> it = tickets.values().iterator(); it.hasNext(); ) {
+            AdmissionController.Ticket ticket = it.next();
+            if (ticket.sessionId != sessionId) {
+                continue;
+            }
+            if (ticket.claim()) {
+                // Never started, and now no payload can start it
+                it.remove();
+                freed.addAll(admission.release(ticket));
+            } else {
+                // The job releases its own reservation once it has unwound
+                ticket.token.cancel("client disconnected");
+            }
+        }
+        notifyAdmitted(freed);
+        updateStatus();
+        // Behind any chain the session is still opening; nothing else arrives for it after this
+        SerialQueue queue = chainQueues.remove(sessionId);
+        if (queue != null) {
+            queue.execute(() -> {
+                for (Map.Entry<String, OpenChain> chain : new ArrayList<>(chains.entrySet())) {
+                    if (chain.getValue().ticket.sessionId == sessionId) {
+                        closeChain(chain.getKey());
+                    }
+                }
+            });
+        }
+    }
+
+    private static void notifyAdmitted(List<AdmissionController.Ticket> admittedTickets) {
+        Deque<AdmissionController.Ticket> pending = new ArrayDeque<>(admittedTickets);
+        while (!pending.isEmpty()) {
+            AdmissionController.Ticket t = pending.poll();
+            if (t.token.isCancelled()) {
+                // Ran out of time in the queue; pass the reservation on to the next in line
+                tickets.remove(key(t.sessionId, t.requestId));
+                REQUESTS_CANCELLED.increment();
+                send(t.sessionId, new Protocol.Result(t.requestId, null, "cancelled: " + t.token.getReason()));
+                pending.addAll(admission.release(t));
+            } else {
+                send(t.sessionId, new Protocol.Admission(t.requestId, Protocol.Decision.ADMITTED, null));
+            }
+        }
+    }
+
+    // Tells the router to steer new clients elsewhere while requests are queued here
+    private static synchronized void updateStatus() {
+        boolean saturated = admission.isSaturated();
+        if (accepting != saturated) {
+            return;
+        }
+        accepting = !saturated;
+        Log.debug("Backpressure " + (accepting ? "released" : "applied"));
+        writeToRouter(new Protocol.ServerStatus(accepting, admission.getQueuedCount(), admission.getReservedBytes()));
+    }
+
+    private static void send(long sessionId, Object message) {
+        DirectConnection connection = directSessions.get(sessionId);
+        if (connection != null) {
+            connection.send(message);
+        } else {
+            writeToRouter(new Protocol.Envelope(sessionId, message));
+        }
+    }
+
+    private static void writeToRouter(Object message) {
+        synchronized (routerOut) {
+            try {
+                routerOut.writeObject(message);
+                routerOut.reset(); // Messages are never re-sent; drop them from the stream's handle table
+                routerOut.flush();
+            } catch (IOException e) {
+                Log.warn("Failed to send to router: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String key(long sessionId, long requestId) {
+        return sessionId + ":" + requestId;
+    }
+
+    // Exports the reduction as Chrome trace JSON when -Dserver.traceDir is set
+    private static void writeTrace(ReductionTrace trace) {
+        if (TRACE_DIR == null || trace == null) {
+            return;
+        }
+        File file = new File(TRACE_DIR, "trace-" + System.currentTimeMillis() + "-" + traceCount.incrementAndGet() + ".json");
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            trace.writeChromeTrace(writer);
+            Log.debug("Wrote reduction trace to " + file.getPath());
+        } catch (IOException e) {
+            Log.warn("Failed to write trace: " + e.getMessage());
         }
     }
 
-    private static long getBaselineTime(matrix[] matrices)
+    // Stops with the request's token, like the request itself
+    private static long getBaselineTime(matrix[] matrices, CancellationToken token)
             throws ExecutionException, InterruptedException {
-        System.out.println("Calculating baseline (single-threaded) performance...");
+        Log.debug("Calculating baseline (single-threaded) performance...");
 
-        MatrixFileIO.initializeThreadPool(2); // Forces single thread mode
         long startTime = System.nanoTime();
-        MatrixFileIO.resultMatrix(matrices.clone()); // Use clone to avoid modifying original
+        // Every node task runs on this thread, leaving the shared pool to other jobs, and
+        // without the cache, since the baseline must recompute everything
+        MatrixFileIO.resultMatrix(matrices.clone(), token, Runnable::run, false);
         long endTime = System.nanoTime();
 
         return endTime - startTime;
     }
 
+    // Every piece of a request's work goes through a job of the client it belongs to
+    private static FairScheduler.Job openJob(AdmissionController.Ticket ticket) {
+        return scheduler.open(ticket.clientId, ticket.flops <= SMALL_JOB_FLOPS);
+    }
+
     private static void cleanup(ObjectOutputStream objectOut,
                                 ObjectInputStream objectIn, Socket routerSocket) {
-        System.out.println("\nCleaning up server resources...");
+        Log.info("\nCleaning up server resources...");
         try {
+            batcher.shutdown();
+            if (dataSocket != null) dataSocket.close();
+            directSessions.values().forEach(DirectConnection::close);
+            directThreads.shutdownNow();
+            jobWorkers.shutdownNow();
             MatrixFileIO.shutdown();
 
             if (objectOut != null) objectOut.close();
             if (objectIn != null) objectIn.close();
             if (routerSocket != null) routerSocket.close();
 
-            System.out.println("Cleanup complete");
+            Log.info("Cleanup complete");
         } catch (IOException e) {
-            System.err.println("Error closing resources: " + e.getMessage());
+            Log.error("Error closing resources: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
@@ -4,20 +4,28 @@ import java.io.*;
 public class TCPServerRouter {
     public static void main(String[] args) throws IOException {
         Socket clientSocket = null;
-        Object[][] RoutingTable = new Object[10][2]; // Now stores [address, SThread] pairs
-        int SockNum = 5555;
+        int SockNum = args.length > 0 ? Integer.parseInt(args[0]) : 5555;
+        int tableSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        Object[][] RoutingTable = new Object[tableSize][2]; // Now stores [address, SThread] pairs
         boolean Running = true;
-        int ind = 0;
         String localAddress = InetAddress.getLocalHost().getHostAddress();
 
-        System.out.println("ServerRouter IP: " + localAddress);
+        Log.info("ServerRouter IP: " + localAddress);
+
+        Metrics.gauge("router_connections", () -> countEntries(RoutingTable, false, false));
+        Metrics.gauge("router_servers", () -> countEntries(RoutingTable, true, false));
+        Metrics.gauge("router_servers_busy", () -> countEntries(RoutingTable, true, true));
+        Metrics.gauge("router_table_size", () -> RoutingTable.length);
+        Metrics.Counter accepted = Metrics.counter("router_connections_total");
+        Metrics.Counter refused = Metrics.counter("router_connections_refused_total");
+        Metrics.expose("router");
 
         ServerSocket serverSocket = null;
         try {
             serverSocket = new ServerSocket(SockNum);
-            System.out.println("ServerRouter is Listening on port: " + SockNum);
+            Log.info("ServerRouter is Listening on port: " + SockNum);
         } catch (IOException e) {
-            System.err.println("Could not listen on port: " + SockNum);
+            Log.error("Could not listen on port: " + SockNum);
             System.exit(1);
         }
 
@@ -26,16 +34,34 @@ public class TCPServerRouter {
             try {
                 clientSocket = serverSocket.accept();
                 String clientAddress = clientSocket.getInetAddress().getHostAddress();
-                System.out.println("New connection from: " + clientAddress);
+                Log.debug("New connection from: " + clientAddress);
+                accepted.increment();
+
+                int ind = findFreeSlot(RoutingTable);
+                if (ind < 0) {
+                    refused.increment();
+                    Log.warn("Routing table full (" + tableSize + " entries), refusing " + clientAddress);
+                    clientSocket.close();
+                    continue;
+                }
 
-                SThread t = new SThread(RoutingTable, clientSocket, ind);
-                t.start();
-                ind++;
+                try {
+                    SThread t = new SThread(RoutingTable, clientSocket, ind);
+                    t.start();
+                } catch (IOException e) {
+                    // One bad handshake (e.g. a port probe) must not take the router down
+                    Log.warn("Handshake with " + clientAddress + " failed: " + e.getMessage());
+                    synchronized (RoutingTable) {
+                        RoutingTable[ind][1] = null;
+                    }
+                    clientSocket.close();
+                    continue;
+                }
 
-                System.out.println("ServerRouter connected with Client/Server: " + clientAddress);
+                Log.debug("ServerRouter connected with Client/Server: " + clientAddress);
             } catch (IOException e) {
-                System.err.println("Client/Server failed to connect.");
-                System.err.println(e.getMessage());
+                Log.error("Client/Server failed to connect.");
+                Log.error(e.getMessage());
                 Running = false;
             }
         }
@@ -45,4 +71,30 @@ public class TCPServerRouter {
             serverSocket.close();
         }
     }
-}
\ No newline at end of file
+
+    private static int countEntries(Object[][] RoutingTable, boolean serversOnly, boolean busyOnly) {
+        int n = 0;
+        synchronized (RoutingTable) {
+            for (Object[] entry : RoutingTable) {
+                SThread t = (SThread) entry[1];
+                if (t == null) continue;
+                if (serversOnly && !t.isServer()) continue;
+                if (busyOnly && !t.isBusy()) continue;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // Slots are released by SThread.cleanup when a connection closes
+    private static int findFreeSlot(Object[][] RoutingTable) {
+        synchronized (RoutingTable) {
+            for (int i = 0; i < RoutingTable.length; i++) {
+                if (RoutingTable[i][1] == null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -1,6 +1,16 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
 public class matrix implements java.io.Serializable {
     private static final long serialVersionUID = 1L;
+    private static final long PARALLEL_MATVEC_ELEMENTS = 1 << 18;
     private final int[][] matrixData;
+    // Lazily computed content fingerprint; not part of the serialized form
+    private transient volatile long[] fingerprint;
+    // Lazily computed SHA-256 of the dimensions and contents, for shared cache keys
+    private transient volatile byte[] digest;
 
     public matrix(int[][] data) {
         // Create a deep copy of the input array for immutability -- Bug fixing stream issues
@@ -10,6 +20,15 @@ public class matrix implements java.io.Serializable {
         }
     }
 
+    private matrix(int[][] data, boolean adopt) {
+        this.matrixData = data;
+    }
+
+    // Wraps freshly built rows without the defensive copy; the caller must not keep them
+    static matrix adopt(int[][] data) {
+        return new matrix(data, true);
+    }
+
     public int[][] getMatrixData() {
         // Return a deep copy to maintain encapsulation -- Bug fixing stream issues
         int[][] copy = new int[matrixData.length][matrixData[0].length];
@@ -19,6 +38,55 @@ public class matrix implements java.io.Serializable {
         return copy;
     }
 
+    // Copies the contents into off-heap memory without an intermediate heap copy
+    public OffHeapMatrix toOffHeap(OffHeapArena arena) {
+        OffHeapMatrix m = arena.allocate(matrixData.length, matrixData[0].length);
+        m.copyFrom(matrixData);
+        return m;
+    }
+
+    /**
+     * Returns this matrix times a column vector, in int arithmetic that wraps exactly as the
+     * multiplication kernels do. Rows are split across the common pool for large matrices.
+     */
+    public int[] multiply(int[] vector) {
+        return multiply(vector, (long) matrixData.length * vector.length >= PARALLEL_MATVEC_ELEMENTS);
+    }
+
+    // Like multiply(vector), on the calling thread alone unless parallel is set
+    int[] multiply(int[] vector, boolean parallel) {
+        if (vector.length != matrixData[0].length) {
+            throw new IllegalArgumentException("Vector length " + vector.length +
+                    " does not match " + matrixData[0].length + " columns");
+        }
+        int[] out = new int[matrixData.length];
+        IntStream rows = IntStream.range(0, matrixData.length);
+        if (parallel) {
+            rows = rows.parallel();
+        }
+        rows.forEach(i -> {
+            int[] row = matrixData[i];
+            int sum = 0;
+            for (int j = 0; j < row.length; j++) {
+                sum += row[j] * vector[j];
+            }
+            out[i] = sum;
+        });
+        return out;
+    }
+
+    // Whether every row exists and has the same, non-zero length. The constructor ensures
+    // it, but a deserialized matrix bypasses the constructor.
+    boolean isRectangular() {
+        if (matrixData == null || matrixData.length == 0 || matrixData[0] == null || matrixData[0].length == 0) {
+            return false;
+        }
+        for (int[] row : matrixData) {
+            if (row == null || row.length != matrixData[0].length) return false;
+        }
+        return true;
+    }
+
     // Add helper methods for debugging
     public int getRows() {
         return matrixData.length;
@@ -28,6 +96,73 @@ public class matrix implements java.io.Serializable {
         return matrixData[0].length;
     }
 
+    /**
+     * Returns a 128-bit fingerprint of the matrix contents as two longs. The value is
+     * computed once per instance and is stable across serialization.
+     */
+    public long[] fingerprint() {
+        long[] f = fingerprint;
+        if (f == null) {
+            long h1 = 0x9E3779B97F4A7C15L ^ matrixData.length;
+            long h2 = 0xC2B2AE3D27D4EB4FL ^ matrixData[0].length;
+            for (int[] row : matrixData) {
+                for (int value : row) {
+                    h1 = Long.rotateLeft(h1 ^ (value * 0x87C37B91114253D5L), 31) * 0x4CF5AD432745937FL;
+                    h2 = (h2 + value) * 0x9FB21C651E98DF25L;
+                    h2 ^= h2 >>> 29;
+                }
+            }
+            f = new long[]{mix(h1), mix(h2 ^ h1)};
+            fingerprint = f;
+        }
+        return f.clone();
+    }
+
+    /**
+     * SHA-256 of the dimensions and contents, computed once per instance. Unlike
+     * fingerprint(), nobody can construct two matrices that share one, so it is safe to key
+     * a cache shared between clients by it. The array is shared and must not be modified.
+     */
+    byte[] contentDigest() {
+        byte[] d = digest;
+        if (d == null) {
+            MessageDigest sha;
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is required of every Java platform", e);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 * Math.max(2, matrixData[0].length));
+            buffer.putInt(matrixData.length).putInt(matrixData[0].length).flip();
+            sha.update(buffer);
+            for (int[] row : matrixData) {
+                buffer.clear();
+                buffer.asIntBuffer().put(row);
+                buffer.limit(4 * row.length);
+                sha.update(buffer);
+            }
+            d = sha.digest();
+            digest = d;
+        }
+        return d;
+    }
+
+    /**
+     * Compares the contents of two matrices without copying them.
+     */
+    public boolean contentEquals(matrix other) {
+        return other != null && java.util.Arrays.deepEquals(matrixData, other.matrixData);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
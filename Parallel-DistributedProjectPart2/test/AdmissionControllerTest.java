@@ -0,0 +1,56 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControllerTest {
+    private static AdmissionController.Ticket ticket(long requestId, int count, int size) {
+        return new AdmissionController.Ticket(1, new Protocol.RequestHeader(requestId, count, size, size));
+    }
+
+    @Test
+    void idleServerAdmitsWorkOverComputeBudget() {
+        AdmissionController admission = new AdmissionController(Long.MAX_VALUE, 1e9, 4);
+        AdmissionController.Ticket big = ticket(1, 8, 1024);
+        assertTrue(big.flops > 1e9);
+        assertEquals(Protocol.Decision.ADMITTED, admission.offer(big).decision);
+
+        // Waits while the big one runs, then runs alone in its turn
+        AdmissionController.Ticket next = ticket(2, 8, 1024);
+        assertEquals(Protocol.Decision.QUEUED, admission.offer(next).decision);
+        assertEquals(List.of(next), admission.release(big));
+        assertTrue(next.isAdmitted());
+    }
+
+    @Test
+    void rejectsWhatNeverFitsInMemory() {
+        AdmissionController.Ticket big = ticket(1, 8, 1024);
+        AdmissionController admission = new AdmissionController(big.bytes - 1, Double.MAX_VALUE, 4);
+        assertEquals(Protocol.Decision.REJECTED, admission.offer(big).decision);
+        assertEquals(0, admission.getReservedBytes());
+    }
+
+    @Test
+    void releasingTwiceReturnsTheReservationOnce() {
+        AdmissionController.Ticket first = ticket(1, 2, 256);
+        AdmissionController admission = new AdmissionController(first.bytes, Double.MAX_VALUE, 4);
+        assertEquals(Protocol.Decision.ADMITTED, admission.offer(first).decision);
+        admission.release(first);
+        assertEquals(List.of(), admission.release(first));
+        assertEquals(0, admission.getReservedBytes());
+
+        // Had the second release counted, the server would look idle with this one running
+        AdmissionController.Ticket second = ticket(2, 2, 256);
+        assertEquals(Protocol.Decision.ADMITTED, admission.offer(second).decision);
+        assertEquals(Protocol.Decision.QUEUED, admission.offer(ticket(3, 2, 256)).decision);
+        assertEquals(second.bytes, admission.getReservedBytes());
+    }
+
+    @Test
+    void onlyOnePayloadClaimsATicket() {
+        AdmissionController.Ticket ticket = ticket(1, 2, 256);
+        assertTrue(ticket.claim());
+        assertFalse(ticket.claim());
+    }
+}
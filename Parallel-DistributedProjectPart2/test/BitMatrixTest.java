@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BitMatrixTest {
+    private static boolean[][] random(Random random, int rows, int cols, double density) {
+        boolean[][] m = new boolean[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                m[i][j] = random.nextDouble() < density;
+            }
+        }
+        return m;
+    }
+
+    private static BitMatrix pack(boolean[][] m) {
+        BitMatrix b = new BitMatrix(m.length, m[0].length);
+        for (int i = 0; i < m.length; i++) {
+            for (int j = 0; j < m[0].length; j++) {
+                b.set(i, j, m[i][j]);
+            }
+        }
+        return b;
+    }
+
+    private static boolean[][] naiveProduct(boolean[][] a, boolean[][] b) {
+        boolean[][] c = new boolean[a.length][b[0].length];
+        for (int i = 0; i < a.length; i++) {
+            for (int k = 0; k < b.length; k++) {
+                if (a[i][k]) {
+                    for (int j = 0; j < b[0].length; j++) {
+                        c[i][j] |= b[k][j];
+                    }
+                }
+            }
+        }
+        return c;
+    }
+
+    private static void assertSame(boolean[][] expected, BitMatrix actual, String what) {
+        assertEquals(expected.length, actual.getRows(), what);
+        assertEquals(expected[0].length, actual.getCols(), what);
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < expected[0].length; j++) {
+                assertEquals(expected[i][j], actual.get(i, j), what + " at " + i + "," + j);
+            }
+        }
+    }
+
+    @Test
+    void productMatchesNaiveOnBothSidesOfFourRussians() {
+        Random random = new Random(44);
+        int min = BitMatrix.FOUR_RUSSIANS_MIN_SIZE;
+        // Inner dimensions around the threshold, past one round of tables and off word
+        // and group boundaries
+        int[] inners = {1, 7, 63, 65, min - 1, min, min + 1, 8 * 64 + 3, 8 * 64 * 2 + 11};
+        for (int inner : inners) {
+            for (double density : new double[]{0.02, 0.3}) {
+                int rows = 1 + random.nextInt(90);
+                int cols = 1 + random.nextInt(150);
+                boolean[][] a = random(random, rows, inner, density);
+                boolean[][] b = random(random, inner, cols, density);
+                assertSame(naiveProduct(a, b), pack(a).multiply(pack(b)),
+                        rows + "x" + inner + " * " + inner + "x" + cols + " at " + density);
+            }
+        }
+    }
+
+    @Test
+    void chainMatchesNaive() throws Exception {
+        Random random = new Random(45);
+        for (int size : new int[]{40, BitMatrix.FOUR_RUSSIANS_MIN_SIZE + 5}) {
+            boolean[][][] chain = new boolean[5][][];
+            BitMatrix[] packed = new BitMatrix[chain.length];
+            for (int m = 0; m < chain.length; m++) {
+                chain[m] = random(random, size, size, 3.0 / size);
+                packed[m] = pack(chain[m]);
+            }
+            boolean[][] expected = chain[0];
+            for (int m = 1; m < chain.length; m++) {
+                expected = naiveProduct(expected, chain[m]);
+            }
+            assertSame(expected, MatrixFileIO.booleanResultMatrix(packed, CancellationToken.NONE), "size " + size);
+        }
+    }
+
+    @Test
+    void estimateCoversFourRussiansTables() {
+        int big = 16384;
+        long tables = BitMatrix.tableBytes(big, big);
+        assertEquals(64L * 256 * (big / 64) * 8, tables);
+        assertEquals(0, BitMatrix.tableBytes(BitMatrix.FOUR_RUSSIANS_MIN_SIZE - 1, big));
+
+        // Two matrices make one product: the operands, result and headroom, and its tables
+        long matrixBytes = 8L * big * (big / 64) + 16L * big;
+        assertEquals(matrixBytes * 10 + tables,
+                new Protocol.RequestHeader(1, 2, big, big, 0, 0, true).estimatedBytes());
+    }
+
+    @Test
+    void largeProductForksThroughTheGivenExecutor() {
+        Random random = new Random(46);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        AtomicInteger forked = new AtomicInteger();
+        try {
+            for (int inner : new int[]{BitMatrix.FOUR_RUSSIANS_MIN_SIZE - 1, 512}) {
+                boolean[][] a = random(random, 1024, inner, 0.02);
+                boolean[][] b = random(random, inner, 1280, 0.02);
+                int before = forked.get();
+                BitMatrix product = pack(a).multiply(pack(b), CancellationToken.NONE, task -> {
+                    forked.incrementAndGet();
+                    pool.execute(task);
+                });
+                assertSame(naiveProduct(a, b), product, "inner " + inner);
+                assertTrue(forked.get() > before, "inner " + inner);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void rejectsMismatchedDimensions() {
+        assertThrows(IllegalArgumentException.class, () -> new BitMatrix(3, 4).multiply(new BitMatrix(5, 3)));
+    }
+}
@@ -0,0 +1,68 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CancellationTokenTest {
+    @Test
+    void keepsTheFirstReason() {
+        CancellationToken token = CancellationToken.create();
+        assertFalse(token.isCancelled());
+        token.cancel("client disconnected");
+        token.cancel("later");
+        assertTrue(token.isCancelled());
+        CancellationException e = assertThrows(CancellationException.class, token::throwIfCancelled);
+        assertEquals("client disconnected", e.getMessage());
+    }
+
+    @Test
+    void deadlineCancelsOnceItPasses() throws Exception {
+        CancellationToken token = CancellationToken.withTimeout(5);
+        Thread.sleep(20);
+        assertTrue(token.isCancelled());
+        assertEquals("deadline exceeded", token.getReason());
+
+        assertFalse(CancellationToken.withTimeout(0).isCancelled());
+    }
+
+    @Test
+    void noneCannotBeCancelled() {
+        assertThrows(UnsupportedOperationException.class, () -> CancellationToken.NONE.cancel("no"));
+        assertFalse(CancellationToken.NONE.isCancelled());
+    }
+
+    @Test
+    void cancelledTokenStopsAReduction() {
+        matrix[] chain = MatrixGenerator.generateChain(32, 6, -5, 5, 3300);
+        CancellationToken before = CancellationToken.create();
+        before.cancel("before");
+        assertThrows(CancellationException.class,
+                () -> MatrixFileIO.resultMatrix(chain, before, Runnable::run, false));
+
+        // Cancelled once the first product has been handed out
+        CancellationToken during = CancellationToken.create();
+        Executor cancelling = task -> {
+            during.cancel("during");
+            task.run();
+        };
+        CancellationException e = assertThrows(CancellationException.class,
+                () -> MatrixFileIO.resultMatrix(chain, during, cancelling, false));
+        assertEquals("during", e.getMessage());
+    }
+
+    @Test
+    void deadlineStopsAReduction() {
+        matrix[] chain = MatrixGenerator.generateChain(256, 16, -5, 5, 3301);
+        CancellationToken token = CancellationToken.withTimeout(1);
+        AtomicInteger handed = new AtomicInteger();
+        assertThrows(CancellationException.class, () -> MatrixFileIO.resultMatrix(chain, token, task -> {
+            handed.incrementAndGet();
+            task.run();
+        }, false));
+        // Stopped before handing out all fifteen products of the chain
+        assertTrue(handed.get() < 15, "handed " + handed.get());
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChainSessionTest {
+    private static int[][] naiveProduct(matrix[] chain, int from, int to) {
+        int[][] product = chain[from].getMatrixData();
+        for (int m = from + 1; m <= to; m++) {
+            int[][] b = chain[m].getMatrixData();
+            int[][] c = new int[product.length][b[0].length];
+            for (int i = 0; i < product.length; i++) {
+                for (int k = 0; k < b.length; k++) {
+                    for (int j = 0; j < b[0].length; j++) {
+                        c[i][j] += product[i][k] * b[k][j];
+                    }
+                }
+            }
+            product = c;
+        }
+        return product;
+    }
+
+    @Test
+    void productMatchesChainOfEveryLength() throws Exception {
+        for (int length = 1; length <= 9; length++) {
+            matrix[] chain = MatrixGenerator.generateChain(12, length, -5, 5, length);
+            ChainSession session = new ChainSession(chain, CancellationToken.NONE);
+            assertArrayEquals(naiveProduct(chain, 0, length - 1), session.product(), "length " + length);
+        }
+    }
+
+    @Test
+    void updatesKeepProductCurrent() throws Exception {
+        Random random = new Random(41);
+        matrix[] chain = MatrixGenerator.generateChain(16, 7, -5, 5, 1);
+        ChainSession session = new ChainSession(chain, CancellationToken.NONE);
+        for (int round = 0; round < 20; round++) {
+            int index = random.nextInt(chain.length);
+            chain[index] = MatrixGenerator.generateChain(16, 1, -5, 5, 100 + round)[0];
+            assertArrayEquals(naiveProduct(chain, 0, chain.length - 1),
+                    session.update(index, chain[index], CancellationToken.NONE), "round " + round);
+        }
+    }
+
+    @Test
+    void queriesCoverEveryRange() throws Exception {
+        matrix[] chain = MatrixGenerator.generateChain(10, 6, -5, 5, 2);
+        ChainSession session = new ChainSession(chain, CancellationToken.NONE);
+        chain[4] = MatrixGenerator.generateChain(10, 1, -5, 5, 3)[0];
+        session.update(4, chain[4], CancellationToken.NONE);
+        for (int from = 0; from < chain.length; from++) {
+            for (int to = from; to < chain.length; to++) {
+                assertArrayEquals(naiveProduct(chain, from, to), session.query(from, to, CancellationToken.NONE),
+                        "range " + from + ".." + to);
+            }
+        }
+    }
+
+    @Test
+    void cancelledUpdateLeavesChainIntact() throws Exception {
+        matrix[] chain = MatrixGenerator.generateChain(8, 5, -5, 5, 4);
+        ChainSession session = new ChainSession(chain, CancellationToken.NONE);
+        CancellationToken cancelled = CancellationToken.create();
+        cancelled.cancel("test");
+        matrix replacement = MatrixGenerator.generateChain(8, 1, -5, 5, 5)[0];
+        assertThrows(CancellationException.class,
+                () -> session.update(2, replacement, cancelled));
+        assertArrayEquals(naiveProduct(chain, 0, chain.length - 1), session.product());
+    }
+
+    @Test
+    void rejectsBadArguments() throws Exception {
+        matrix[] chain = MatrixGenerator.generateChain(8, 3, -5, 5, 6);
+        ChainSession session = new ChainSession(chain, CancellationToken.NONE);
+        assertThrows(IllegalArgumentException.class, () -> session.query(2, 1, CancellationToken.NONE));
+        assertThrows(IllegalArgumentException.class, () -> session.query(0, 3, CancellationToken.NONE));
+        assertThrows(IllegalArgumentException.class,
+                () -> session.update(0, MatrixGenerator.generateChain(9, 1, -5, 5, 7)[0], CancellationToken.NONE));
+    }
+}
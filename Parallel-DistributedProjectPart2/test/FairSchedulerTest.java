@@ -0,0 +1,141 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairSchedulerTest {
+    // Holds what the scheduler hands to the pool until the test runs it
+    private static final class ManualPool implements Executor {
+        final Deque<Runnable> handed = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            handed.add(task);
+        }
+
+        void runNext() {
+            handed.poll().run();
+        }
+
+        void runAll() {
+            while (!handed.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+
+    private static Runnable record(List<String> log, String name) {
+        return () -> log.add(name);
+    }
+
+    @Test
+    void handsAtMostSlotsToPool() {
+        ManualPool pool = new ManualPool();
+        FairScheduler scheduler = new FairScheduler(pool, 2, 0);
+        List<String> log = new ArrayList<>();
+        try (FairScheduler.Job job = scheduler.open(1, false)) {
+            for (int i = 0; i < 5; i++) {
+                job.execute(record(log, "t" + i));
+            }
+            assertEquals(2, pool.handed.size());
+            assertEquals(3, scheduler.getQueuedTaskCount());
+            pool.runNext();
+            assertEquals(2, pool.handed.size());
+            pool.runAll();
+        }
+        assertEquals(List.of("t0", "t1", "t2", "t3", "t4"), log);
+        assertEquals(0, scheduler.getActiveClientCount());
+    }
+
+    @Test
+    void smallJobsGoFirst() {
+        ManualPool pool = new ManualPool();
+        FairScheduler scheduler = new FairScheduler(pool, 1, 0);
+        List<String> log = new ArrayList<>();
+        try (FairScheduler.Job large = scheduler.open(1, false); FairScheduler.Job small = scheduler.open(2, true)) {
+            large.execute(record(log, "large0"));
+            large.execute(record(log, "large1"));
+            small.execute(record(log, "small"));
+            pool.runAll();
+        }
+        assertEquals(List.of("large0", "small", "large1"), log);
+    }
+
+    @Test
+    void clientWithLeastPoolTimeGoesNext() {
+        ManualPool pool = new ManualPool();
+        FairScheduler scheduler = new FairScheduler(pool, 1, 0);
+        List<String> log = new ArrayList<>();
+        try (FairScheduler.Job a = scheduler.open(1, false); FairScheduler.Job b = scheduler.open(2, false)) {
+            a.execute(() -> {
+                log.add("a0");
+                sleep(20);
+            });
+            a.execute(record(log, "a1"));
+            b.execute(record(log, "b0"));
+            pool.runAll();
+        }
+        assertEquals(List.of("a0", "b0", "a1"), log);
+    }
+
+    @Test
+    void quotaCapsOneClientsRunningTasks() {
+        ManualPool pool = new ManualPool();
+        FairScheduler scheduler = new FairScheduler(pool, 4, 1);
+        try (FairScheduler.Job a = scheduler.open(1, false); FairScheduler.Job b = scheduler.open(2, false)) {
+            for (int i = 0; i < 3; i++) {
+                a.execute(() -> { });
+            }
+            b.execute(() -> { });
+            assertEquals(2, pool.handed.size());
+            pool.runAll();
+        }
+        assertEquals(0, scheduler.getQueuedTaskCount());
+    }
+
+    @Test
+    void jobsOfOneClientShareItsQuota() {
+        ManualPool pool = new ManualPool();
+        FairScheduler scheduler = new FairScheduler(pool, 4, 1);
+        // Two connections of one client, as the server sees them
+        try (FairScheduler.Job first = scheduler.open(7, false); FairScheduler.Job second = scheduler.open(7, false)) {
+            first.execute(() -> { });
+            second.execute(() -> { });
+            assertEquals(1, pool.handed.size());
+            assertEquals(1, scheduler.getActiveClientCount());
+            pool.runAll();
+        }
+    }
+
+    @Test
+    void taskSubmittedAfterCloseStillRuns() {
+        ManualPool pool = new ManualPool();
+        FairScheduler scheduler = new FairScheduler(pool, 1, 0);
+        List<String> log = new ArrayList<>();
+        FairScheduler.Job job = scheduler.open(1, false);
+        job.close();
+        assertEquals(0, scheduler.getActiveClientCount());
+        job.execute(record(log, "late"));
+        pool.runAll();
+        assertEquals(List.of("late"), log);
+        assertEquals(0, scheduler.getActiveClientCount());
+    }
+
+    @Test
+    void rejectsNoSlots() {
+        assertThrows(IllegalArgumentException.class, () -> new FairScheduler(new ManualPool(), 0, 0));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FreivaldsVerifierTest {
+    @Test
+    void acceptsTheCorrectProduct() {
+        for (int count = 1; count <= 5; count++) {
+            matrix[] chain = MatrixGenerator.generateChain(40, count, -100, 100, 3700 + count);
+            matrix product = new matrix(MatrixFileIO.resultMatrixSingleThread(chain));
+            assertTrue(FreivaldsVerifier.verify(chain, product, 10, count), "count " + count);
+        }
+    }
+
+    @Test
+    void rejectsASingleCorruptedEntry() {
+        matrix[] chain = MatrixGenerator.generateChain(40, 4, -100, 100, 3710);
+        int[][] data = MatrixFileIO.resultMatrixSingleThread(chain);
+        for (int seed = 0; seed < 20; seed++) {
+            int i = (seed * 7) % 40;
+            int j = (seed * 13) % 40;
+            data[i][j] += 1 + seed;
+            assertFalse(FreivaldsVerifier.verify(chain, new matrix(data), 10, seed), "entry " + i + "," + j);
+            data[i][j] -= 1 + seed;
+        }
+    }
+
+    @Test
+    void rejectsAProductOfTheWrongShape() {
+        matrix[] chain = {new matrix(new int[3][5]), new matrix(new int[5][4])};
+        assertFalse(FreivaldsVerifier.verify(chain, new matrix(new int[3][3]), 5, 1));
+        assertTrue(FreivaldsVerifier.verify(chain, new matrix(new int[3][4]), 5, 1));
+    }
+
+    @Test
+    void rejectsAChainThatDoesNotMultiply() {
+        matrix[] chain = {new matrix(new int[3][5]), new matrix(new int[4][4])};
+        assertThrows(IllegalArgumentException.class,
+                () -> FreivaldsVerifier.verify(chain, new matrix(new int[3][4]), 5, 1));
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MatrixCacheTest {
+    private static MatrixCache.Key key(long seed) {
+        return MatrixCache.Key.of(MatrixGenerator.generateChain(4, 1, -5, 5, seed)[0]);
+    }
+
+    @Test
+    void keyDependsOnContentNotInstance() {
+        matrix a = MatrixGenerator.generateChain(4, 1, -5, 5, 1)[0];
+        matrix copy = new matrix(a.getMatrixData());
+        assertEquals(MatrixCache.Key.of(a), MatrixCache.Key.of(copy));
+        assertEquals(MatrixCache.Key.of(a).hashCode(), MatrixCache.Key.of(copy).hashCode());
+        assertNotEquals(MatrixCache.Key.of(a), key(2));
+    }
+
+    @Test
+    void keyIsTheSameHoweverTheChainIsSplit() {
+        MatrixCache.Key a = key(1);
+        MatrixCache.Key b = key(2);
+        MatrixCache.Key c = key(3);
+        assertEquals(MatrixCache.Key.concat(MatrixCache.Key.concat(a, b), c),
+                MatrixCache.Key.concat(a, MatrixCache.Key.concat(b, c)));
+        assertNotEquals(MatrixCache.Key.concat(a, b), MatrixCache.Key.concat(b, a));
+
+        // Runs merge across the split, so a a | a equals a | a a and a^3
+        MatrixCache.Key aa = MatrixCache.Key.concat(a, a);
+        assertEquals(MatrixCache.Key.concat(aa, a), MatrixCache.Key.concat(a, aa));
+        assertEquals(MatrixCache.Key.repeat(a, 3), MatrixCache.Key.concat(aa, a));
+        assertNotEquals(MatrixCache.Key.repeat(a, 3), MatrixCache.Key.repeat(a, 4));
+    }
+
+    @Test
+    void repeatOfAChainEqualsItsConcatenation() {
+        MatrixCache.Key ab = MatrixCache.Key.concat(key(1), key(2));
+        MatrixCache.Key expected = ab;
+        for (int times = 2; times <= 7; times++) {
+            expected = MatrixCache.Key.concat(expected, ab);
+            assertEquals(expected, MatrixCache.Key.repeat(ab, times), "times " + times);
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedFirst() {
+        int[][] product = new int[4][4];
+        MatrixCache cache = new MatrixCache(2 * MatrixCache.sizeOf(product));
+        cache.put(key(1), product);
+        cache.put(key(2), product);
+        assertNotNull(cache.get(key(1)));
+        cache.put(key(3), product);
+
+        assertNull(cache.get(key(2)));
+        assertNotNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(3)));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * MatrixCache.sizeOf(product), cache.getSizeBytes());
+    }
+
+    @Test
+    void skipsAProductLargerThanTheCache() {
+        MatrixCache cache = new MatrixCache(MatrixCache.sizeOf(new int[4][4]));
+        cache.put(key(1), new int[8][8]);
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    void intermediatesStayWithinTheirShare() {
+        int[][] product = new int[4][4];
+        long size = MatrixCache.sizeOf(product);
+        MatrixCache cache = new MatrixCache(10 * size, 2 * size);
+        MatrixCache.Key whole = key(1);
+        cache.put(whole, product);
+        for (int i = 0; i < 5; i++) {
+            cache.putIntermediate(key(10 + i), product);
+        }
+        assertEquals(2 * size, cache.getIntermediateBytes());
+        assertEquals(3, cache.getEntryCount());
+        assertNotNull(cache.get(whole));
+        assertNotNull(cache.get(key(14)));
+        assertNull(cache.get(key(10)));
+
+        // A whole product is not demoted by a later intermediate of the same chain
+        cache.putIntermediate(whole, product);
+        assertEquals(2 * size, cache.getIntermediateBytes());
+    }
+}
@@ -0,0 +1,185 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MatrixFileIOTest {
+    // Runs each node task on the calling thread, so no pool is needed
+    private static final Executor INLINE = Runnable::run;
+
+    private static int[][] repeatedProduct(matrix a, int k) {
+        matrix[] chain = new matrix[k];
+        Arrays.fill(chain, a);
+        return MatrixFileIO.resultMatrixSingleThread(chain);
+    }
+
+    @Test
+    void matrixPowerMatchesRepeatedProduct() throws Exception {
+        matrix a = MatrixGenerator.generateChain(20, 1, -3, 3, 4200)[0];
+        for (int k = 1; k <= 10; k++) {
+            assertArrayEquals(repeatedProduct(a, k), MatrixFileIO.matrixPower(a, k), "k " + k);
+        }
+        MatrixFileIO.initializeFixedThreadPool(2);
+        try {
+            for (int k : new int[]{1, 2, 7, 16, 33}) {
+                assertArrayEquals(repeatedProduct(a, k), MatrixFileIO.matrixPower(a, k), "pooled k " + k);
+            }
+        } finally {
+            MatrixFileIO.shutdown();
+        }
+    }
+
+    @Test
+    void matrixPowerRejectsBadArguments() {
+        assertThrows(IllegalArgumentException.class, () -> MatrixFileIO.matrixPower(new matrix(new int[2][3]), 2));
+        assertThrows(IllegalArgumentException.class, () -> MatrixFileIO.matrixPower(new matrix(new int[2][2]), 0));
+    }
+
+    @Test
+    void runsOfEqualMatricesCollapseIntoPowers() throws Exception {
+        matrix a = MatrixGenerator.generateChain(16, 1, -3, 3, 4300)[0];
+        // Equal content in separate instances counts as a run too
+        matrix[] chain = new matrix[9];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = new matrix(a.getMatrixData());
+        }
+        assertArrayEquals(repeatedProduct(a, 9), MatrixFileIO.resultMatrix(chain, CancellationToken.NONE, INLINE, false));
+        // a^9 by squaring: a^2, a^4, a^8 and one accumulate, not eight products
+        assertEquals(4, MatrixFileIO.getLastTrace().getSpans().size());
+
+        matrix[] mixed = MatrixGenerator.generateChain(16, 6, -3, 3, 4301);
+        mixed[1] = mixed[0];
+        mixed[2] = mixed[0];
+        mixed[4] = new matrix(mixed[3].getMatrixData());
+        assertArrayEquals(MatrixFileIO.resultMatrixSingleThread(mixed),
+                MatrixFileIO.resultMatrix(mixed, CancellationToken.NONE, INLINE, false));
+    }
+
+    @Test
+    void chainSharingAPrefixReusesItsProduct() throws Exception {
+        MatrixCache cache = MatrixFileIO.getCache();
+        matrix[] first = MatrixGenerator.generateChain(24, 4, -5, 5, 4001);
+        matrix[] second = MatrixGenerator.generateChain(24, 4, -5, 5, 4002);
+        // The two chains split alike, so they share the product of their first half
+        second[0] = first[0];
+        second[1] = first[1];
+
+        assertArrayEquals(MatrixFileIO.resultMatrixSingleThread(first),
+                MatrixFileIO.resultMatrix(first, CancellationToken.NONE, INLINE));
+        assertTrue(cache.getIntermediateBytes() > 0);
+        long hits = cache.getHits();
+        assertArrayEquals(MatrixFileIO.resultMatrixSingleThread(second),
+                MatrixFileIO.resultMatrix(second, CancellationToken.NONE, INLINE));
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    void batchedChainsFailAndWaitAlone() {
+        matrix[][] chains = new matrix[4][];
+        for (int c = 0; c < chains.length; c++) {
+            chains[c] = MatrixGenerator.generateChain(8, 3 + c, -5, 5, 4100 + c);
+        }
+        // A jagged operand makes its own chain fail
+        int[][] jagged = chains[1][1].getMatrixData();
+        jagged[3] = new int[12];
+        chains[1][1] = matrix.adopt(jagged);
+        CancellationToken[] tokens = new CancellationToken[chains.length];
+        Executor[] tasks = new Executor[chains.length];
+        for (int c = 0; c < chains.length; c++) {
+            tokens[c] = CancellationToken.create();
+            tasks[c] = INLINE;
+        }
+        // Chain 2's client gets no pool time at all while the others finish
+        List<Runnable> held = new ArrayList<>();
+        tasks[2] = held::add;
+
+        List<CompletableFuture<int[][]>> results = MatrixFileIO.batchResultMatrix(chains, tokens, tasks);
+        assertArrayEquals(MatrixFileIO.resultMatrixSingleThread(chains[0]), results.get(0).join());
+        assertTrue(results.get(1).isCompletedExceptionally());
+        assertFalse(results.get(2).isDone());
+        assertArrayEquals(MatrixFileIO.resultMatrixSingleThread(chains[3]), results.get(3).join());
+
+        while (!held.isEmpty()) {
+            held.remove(0).run();
+        }
+        assertArrayEquals(MatrixFileIO.resultMatrixSingleThread(chains[2]), results.get(2).join());
+    }
+
+    // The product of a chain whose shapes need not be square, one row-by-column sum at a time
+    private static int[][] naiveProduct(matrix[] chain) {
+        int[][] p = chain[0].getMatrixData();
+        for (int k = 1; k < chain.length; k++) {
+            int[][] b = chain[k].getMatrixData();
+            int[][] c = new int[p.length][b[0].length];
+            for (int i = 0; i < p.length; i++) {
+                for (int j = 0; j < b[0].length; j++) {
+                    int sum = 0;
+                    for (int m = 0; m < b.length; m++) {
+                        sum += p[i][m] * b[m][j];
+                    }
+                    c[i][j] = sum;
+                }
+            }
+            p = c;
+        }
+        return p;
+    }
+
+    @Test
+    void chainTimesVectorsMatchesTheFullProduct() throws Exception {
+        matrix[] chain = MatrixGenerator.generateChain(70, 5, -20, 20, 4220);
+        matrix product = new matrix(MatrixFileIO.resultMatrixSingleThread(chain));
+        int[][] vectors = MatrixGenerator.generateMatrix(70, -20, 20, 4221);
+        int[][] expected = new int[vectors.length][];
+        for (int v = 0; v < vectors.length; v++) {
+            expected[v] = product.multiply(vectors[v]);
+        }
+        assertArrayEquals(expected, MatrixFileIO.chainTimesVectors(chain, vectors, CancellationToken.NONE, INLINE));
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            assertArrayEquals(expected, MatrixFileIO.chainTimesVectors(chain, vectors, CancellationToken.NONE, pool));
+        } finally {
+            pool.shutdown();
+        }
+        assertArrayEquals(expected[0], MatrixFileIO.chainTimes(chain, vectors[0], CancellationToken.NONE));
+    }
+
+    // The leading rows x cols block of a seeded square matrix
+    private static matrix block(int rows, int cols, long seed) {
+        int[][] square = MatrixGenerator.generateMatrix(Math.max(rows, cols), -5, 5, seed);
+        int[][] data = new int[rows][];
+        for (int i = 0; i < rows; i++) {
+            data[i] = Arrays.copyOf(square[i], cols);
+        }
+        return new matrix(data);
+    }
+
+    @Test
+    void chainTimesVectorsFollowsNonSquareShapes() throws Exception {
+        matrix[] chain = {block(9, 9, 4222), block(9, 12, 4223), block(12, 4, 4224)};
+        matrix product = new matrix(naiveProduct(chain));
+        int[][] vectors = {{1, 0, 0, 0}, {3, -1, 4, 1}, {0, 0, 0, 0}};
+        int[][] results = MatrixFileIO.chainTimesVectors(chain, vectors, CancellationToken.NONE, INLINE);
+        for (int v = 0; v < vectors.length; v++) {
+            assertEquals(9, results[v].length);
+            assertArrayEquals(product.multiply(vectors[v]), results[v], "vector " + v);
+        }
+    }
+
+    @Test
+    void cancelledChainTimesVectorsStops() {
+        matrix[] chain = MatrixGenerator.generateChain(16, 3, -5, 5, 4225);
+        CancellationToken token = CancellationToken.create();
+        token.cancel("test");
+        assertThrows(CancellationException.class,
+                () -> MatrixFileIO.chainTimesVectors(chain, new int[][]{new int[16]}, token, INLINE));
+    }
+}
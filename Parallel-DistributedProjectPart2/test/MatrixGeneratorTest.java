@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MatrixGeneratorTest {
+    // Past one streaming block, and not a multiple of it
+    private static final int N = 150;
+
+    @Test
+    void sameSeedGivesTheSameMatrix() {
+        assertArrayEquals(MatrixGenerator.generateMatrix(N, -9, 9, 38),
+                MatrixGenerator.generateMatrix(N, -9, 9, 38));
+        assertFalse(Arrays.deepEquals(MatrixGenerator.generateMatrix(N, -9, 9, 38),
+                MatrixGenerator.generateMatrix(N, -9, 9, 39)));
+    }
+
+    @Test
+    void chainMatchesItsMatricesSeeds() {
+        matrix[] chain = MatrixGenerator.generateChain(N, 3, -9, 9, 38);
+        for (int k = 0; k < chain.length; k++) {
+            assertArrayEquals(MatrixGenerator.generateMatrix(N, -9, 9, MatrixGenerator.seedOf(38, k)),
+                    chain[k].getMatrixData(), "matrix " + k);
+        }
+    }
+
+    @Test
+    void everyOutputFormHoldsTheSameValues() throws Exception {
+        long seed = MatrixGenerator.seedOf(38, 0);
+        int[][] expected = MatrixGenerator.generateMatrix(N, -9, 9, seed);
+        try (OffHeapArena arena = new OffHeapArena(0)) {
+            OffHeapMatrix offHeap = MatrixGenerator.generateOffHeap(arena, N, -9, 9, seed);
+            assertArrayEquals(expected, offHeap.toArray());
+            offHeap.release();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            MatrixGenerator.generateTo(Channels.newChannel(bytes), N, -9, 9, seed);
+            OffHeapMatrix streamed = OffHeapMatrix.readFrom(
+                    Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), arena);
+            assertArrayEquals(expected, streamed.toArray());
+            streamed.release();
+        }
+    }
+
+    @Test
+    void fileHoldsTheSameChain(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("chain.bin");
+        MatrixGenerator.generateToFile(file, N, 3, -9, 9, 38);
+        matrix[] chain = MatrixGenerator.generateChain(N, 3, -9, 9, 38);
+        try (OffHeapArena arena = new OffHeapArena(0); ReadableByteChannel in = FileChannel.open(file)) {
+            for (int k = 0; k < chain.length; k++) {
+                OffHeapMatrix m = OffHeapMatrix.readFrom(in, arena);
+                assertArrayEquals(chain[k].getMatrixData(), m.toArray(), "matrix " + k);
+                m.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageFilterTest {
+    private static final ObjectInputFilter NO_LIMITS = info -> ObjectInputFilter.Status.UNDECIDED;
+
+    private static byte[] serialize(Object... messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            for (Object message : messages) {
+                out.writeObject(message);
+                out.reset();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void boundsEachMessageNotEachArray() throws Exception {
+        // Sixteen rows, each well under the limit, that together exceed it
+        int[][] rows = new int[16][1024];
+        MessageFilter filter = new MessageFilter(NO_LIMITS, 32 * 1024);
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize((Object) rows)));
+        in.setObjectInputFilter(filter);
+        filter.startMessage();
+        assertThrows(InvalidClassException.class, in::readObject);
+    }
+
+    @Test
+    void limitAppliesPerMessage() throws Exception {
+        int[][] rows = new int[4][1024];
+        MessageFilter filter = new MessageFilter(NO_LIMITS, 32 * 1024);
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(rows, rows, rows)));
+        in.setObjectInputFilter(filter);
+        for (int i = 0; i < 3; i++) {
+            filter.startMessage();
+            assertArrayEquals(rows, (int[][]) in.readObject());
+        }
+    }
+
+    @Test
+    void keepsWrappedLimits() throws Exception {
+        MessageFilter filter = new MessageFilter(ObjectInputFilter.Config.createFilter("maxarray=8"), Long.MAX_VALUE);
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize((Object) new int[9])));
+        in.setObjectInputFilter(filter);
+        filter.startMessage();
+        assertThrows(InvalidClassException.class, in::readObject);
+    }
+}
@@ -0,0 +1,49 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapKernelsTest {
+    @Test
+    void productMatchesStandardMultiply() {
+        try (OffHeapArena arena = new OffHeapArena(64L * 1024 * 1024)) {
+            // Around the base case, odd sizes above it, and even sizes whose halves are odd
+            for (int n : new int[]{1, 7, 64, 65, 97, 130, 131, 257}) {
+                matrix[] pair = MatrixGenerator.generateChain(n, 2, -50, 50, n);
+                OffHeapMatrix a = arena.copyOf(pair[0].getMatrixData());
+                OffHeapMatrix b = arena.copyOf(pair[1].getMatrixData());
+                OffHeapMatrix c = OffHeapKernels.multiply(a, b);
+                assertArrayEquals(MatrixFileIO.resultMatrixSingleThread(pair), c.toArray(), "n " + n);
+                a.release();
+                b.release();
+                c.release();
+                assertEquals(0, arena.getLiveBytes(), "n " + n);
+            }
+        }
+    }
+
+    @Test
+    void cancelledProductReturnsItsMemory() {
+        try (OffHeapArena arena = new OffHeapArena(64L * 1024 * 1024)) {
+            matrix[] pair = MatrixGenerator.generateChain(256, 2, -50, 50, 3500);
+            OffHeapMatrix a = arena.copyOf(pair[0].getMatrixData());
+            OffHeapMatrix b = arena.copyOf(pair[1].getMatrixData());
+            CancellationToken token = CancellationToken.create();
+            token.cancel("test");
+            assertThrows(CancellationException.class, () -> OffHeapKernels.multiply(a, b, token));
+            a.release();
+            b.release();
+            assertEquals(0, arena.getLiveBytes());
+        }
+    }
+
+    @Test
+    void rejectsMismatchedSizes() {
+        try (OffHeapArena arena = new OffHeapArena(0)) {
+            OffHeapMatrix a = arena.allocate(4, 4);
+            OffHeapMatrix b = arena.allocate(5, 5);
+            assertThrows(IllegalArgumentException.class, () -> OffHeapKernels.multiply(a, b));
+        }
+    }
+}